@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Resamples ARGB pixels by averaging the area of the source which each destination pixel
+ * covers. Colors are weighted by alpha, and the area outside the source is transparent.
+ * The destination rows are split among the calling thread and the threads of a pool,
+ * which is shared by all the scalers so that scaling band by band starts no threads.
+ */
+public class AreaScaler {
+
+    private static final int MIN_ROWS_PER_THREAD = 16;
+
+    private static ExecutorService  sExecutor;
+
+    private final int   mThreads;
+
+    /*-----------------------------------------------------------------------*/
+
+    public AreaScaler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public AreaScaler(int threads) {
+        mThreads = Math.max(threads, 1);
+    }
+
+    /**
+     * Scales a rectangle of the source onto the whole destination.
+     * @param left the rectangle in source pixels, which may exceed the source
+     */
+    public void scale(final int[] src, final int srcWidth, final int srcHeight,
+            float left, float top, float right, float bottom,
+            final int[] dst, final int dstWidth, final int dstHeight) {
+        final Spans cols = new Spans(left, right, dstWidth, srcWidth);
+        final Spans rows = new Spans(top, bottom, dstHeight, srcHeight);
+        int threads = Math.min(mThreads, Math.max(dstHeight / MIN_ROWS_PER_THREAD, 1));
+        if (threads == 1) {
+            scaleRows(src, srcWidth, cols, rows, dst, dstWidth, 0, dstHeight);
+            return;
+        }
+        ExecutorService executor = getExecutor();
+        final CountDownLatch done = new CountDownLatch(threads - 1);
+        for (int i = 1; i < threads; i++) {
+            final int y0 = dstHeight * i / threads;
+            final int y1 = dstHeight * (i + 1) / threads;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scaleRows(src, srcWidth, cols, rows, dst, dstWidth, y0, y1);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        scaleRows(src, srcWidth, cols, rows, dst, dstWidth, 0, dstHeight / threads);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the shared pool, which has a thread for each processor but the calling one.
+     * Its threads are daemons, so they don't keep the process alive.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+            sExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AreaScaler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * The source pixels and their coverage for each destination pixel along one axis.
+     */
+    private static class Spans {
+        final int[]     mStart;
+        final int[]     mEnd;
+        final float[]   mFirst;
+        final float[]   mLast;
+        final float[]   mArea;
+
+        Spans(float from, float to, int count, int limit) {
+            mStart = new int[count];
+            mEnd = new int[count];
+            mFirst = new float[count];
+            mLast = new float[count];
+            mArea = new float[count];
+            float step = (to - from) / count;
+            for (int i = 0; i < count; i++) {
+                float s0 = from + step * i;
+                float s1 = s0 + step;
+                mArea[i] = s1 - s0;
+                float c0 = Math.max(s0, 0f);
+                float c1 = Math.min(s1, limit);
+                if (c1 <= c0) {
+                    mStart[i] = 0;
+                    mEnd[i] = 0;
+                    continue;
+                }
+                int p0 = (int) c0;
+                int p1 = Math.min((int) Math.ceil(c1), limit);
+                mStart[i] = p0;
+                mEnd[i] = p1;
+                if (p1 - p0 == 1) {
+                    mFirst[i] = c1 - c0;
+                    mLast[i] = c1 - c0;
+                } else {
+                    mFirst[i] = (p0 + 1) - c0;
+                    mLast[i] = c1 - (p1 - 1);
+                }
+            }
+        }
+
+        float weight(int i, int p) {
+            if (p == mStart[i]) {
+                return mFirst[i];
+            }
+            return (p == mEnd[i] - 1) ? mLast[i] : 1f;
+        }
+    }
+
+    private static void scaleRows(int[] src, int srcWidth, Spans cols, Spans rows,
+            int[] dst, int dstWidth, int y0, int y1) {
+        for (int dy = y0; dy < y1; dy++) {
+            int sy0 = rows.mStart[dy], sy1 = rows.mEnd[dy];
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int sx0 = cols.mStart[dx], sx1 = cols.mEnd[dx];
+                float a = 0f, r = 0f, g = 0f, b = 0f;
+                for (int sy = sy0; sy < sy1; sy++) {
+                    float wy = rows.weight(dy, sy);
+                    int pos = sy * srcWidth;
+                    for (int sx = sx0; sx < sx1; sx++) {
+                        int c = src[pos + sx];
+                        float wa = wy * cols.weight(dx, sx) * (c >>> 24);
+                        a += wa;
+                        r += wa * (c >> 16 & 0xFF);
+                        g += wa * (c >> 8 & 0xFF);
+                        b += wa * (c & 0xFF);
+                    }
+                }
+                int color = 0;
+                if (a > 0f) {
+                    int ia = Math.round(a / (rows.mArea[dy] * cols.mArea[dx]));
+                    color = Math.min(ia, 255) << 24 | Math.round(r / a) << 16 |
+                            Math.round(g / a) << 8 | Math.round(b / a);
+                }
+                dst[dy * dstWidth + dx] = color;
+            }
+        }
+    }
+
+}
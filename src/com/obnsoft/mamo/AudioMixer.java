@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Software mixer for short sound effects.
+ * Triggers are passed through a fixed-size single-producer queue and mixed
+ * into one mono 16-bit stream which is written to a {@link Sink}.
+ */
+public class AudioMixer {
+
+    public static final int OUTPUT_RATE = 44100;
+
+    private static final int VOICE_MAX = 12;
+    private static final int QUEUE_SIZE = 32;   // must be a power of two
+    private static final int FRAC_BITS = 16;
+    private static final int FRAC_MASK = (1 << FRAC_BITS) - 1;
+
+    public interface Sink {
+        void open(int sampleRate, int frames);
+        void write(short[] buf, int frames);
+        void close();
+    }
+
+    public static final Sink NULL_SINK = new Sink() {
+        @Override
+        public void open(int sampleRate, int frames) {}
+        @Override
+        public void write(short[] buf, int frames) {}
+        @Override
+        public void close() {}
+    };
+
+    public static class Clip {
+        public final short[]    samples;
+        public final int        sampleRate;
+
+        public Clip(short[] samples, int sampleRate) {
+            this.samples = samples;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    private final AtomicReferenceArray<Clip> mClips;
+
+    private final int[]     mQueueClip = new int[QUEUE_SIZE];
+    private final float[]   mQueuePitch = new float[QUEUE_SIZE];
+    private volatile int    mQueueHead;
+    private volatile int    mQueueTail;
+
+    private final Clip[]    mVoiceClip = new Clip[VOICE_MAX];
+    private final long[]    mVoicePos = new long[VOICE_MAX];
+    private final int[]     mVoiceStep = new int[VOICE_MAX];
+    private final long[]    mVoiceSeq = new long[VOICE_MAX];
+    private long            mSeq;
+    private int[]           mAccum = new int[0];
+
+    private Thread          mThread;
+    private volatile boolean mRunning;
+    private int             mDroppedTriggers;
+    private int             mStolenVoices;
+
+    /*-----------------------------------------------------------------------*/
+
+    public AudioMixer(int clips) {
+        mClips = new AtomicReferenceArray<Clip>(clips);
+    }
+
+    public void setClip(int id, Clip clip) {
+        mClips.set(id, clip);
+    }
+
+    /**
+     * Queues a sound to be started at the next mixing cycle.
+     * This method must be called from a single thread and never blocks.
+     */
+    public boolean trigger(int id, float pitch) {
+        int tail = mQueueTail;
+        if (tail - mQueueHead >= QUEUE_SIZE) {
+            mDroppedTriggers++;
+            return false;
+        }
+        int slot = tail & (QUEUE_SIZE - 1);
+        mQueueClip[slot] = id;
+        mQueuePitch[slot] = pitch;
+        mQueueTail = tail + 1;
+        Tracer.instant("sound");
+        return true;
+    }
+
+    /**
+     * Renders the next frames into the buffer.
+     * This is called by the streaming thread, or directly by tests with no sink.
+     */
+    public void mix(short[] out, int frames) {
+        drainQueue();
+        if (mAccum.length < frames) {
+            mAccum = new int[frames];
+        }
+        int[] accum = mAccum;
+        for (int i = 0; i < frames; i++) {
+            accum[i] = 0;
+        }
+        for (int v = 0; v < VOICE_MAX; v++) {
+            Clip clip = mVoiceClip[v];
+            if (clip != null) {
+                mixVoice(v, clip, accum, frames);
+            }
+        }
+        for (int i = 0; i < frames; i++) {
+            int s = accum[i];
+            out[i] = (short) ((s > Short.MAX_VALUE) ? Short.MAX_VALUE :
+                    (s < Short.MIN_VALUE) ? Short.MIN_VALUE : s);
+        }
+    }
+
+    public synchronized void start(final Sink sink, final int frames) {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] buf = new short[frames];
+                sink.open(OUTPUT_RATE, frames);
+                while (mRunning) {
+                    mix(buf, frames);
+                    sink.write(buf, frames);
+                }
+                sink.close();
+            }
+        }, "AudioMixer");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mThread = null;
+        for (int v = 0; v < VOICE_MAX; v++) {
+            mVoiceClip[v] = null;
+        }
+        mQueueHead = mQueueTail;
+    }
+
+    public int getActiveVoices() {
+        int ret = 0;
+        for (int v = 0; v < VOICE_MAX; v++) {
+            if (mVoiceClip[v] != null) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    public int getDroppedTriggers() {
+        return mDroppedTriggers;
+    }
+
+    public int getStolenVoices() {
+        return mStolenVoices;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void drainQueue() {
+        int head = mQueueHead;
+        int tail = mQueueTail;
+        while (head != tail) {
+            int slot = head & (QUEUE_SIZE - 1);
+            startVoice(mQueueClip[slot], mQueuePitch[slot]);
+            head++;
+        }
+        mQueueHead = head;
+    }
+
+    private void startVoice(int id, float pitch) {
+        Clip clip = (id >= 0 && id < mClips.length()) ? mClips.get(id) : null;
+        if (clip == null || clip.samples.length == 0) {
+            return;
+        }
+        int target = -1;
+        for (int v = 0; v < VOICE_MAX; v++) {
+            if (mVoiceClip[v] == null) {
+                target = v;
+                break;
+            }
+            if (target < 0 || mVoiceSeq[v] < mVoiceSeq[target]) {
+                target = v;
+            }
+        }
+        if (mVoiceClip[target] != null) {
+            mStolenVoices++;
+        }
+        mVoiceClip[target] = clip;
+        mVoicePos[target] = 0;
+        mVoiceStep[target] = (int) (pitch * clip.sampleRate / OUTPUT_RATE * (1 << FRAC_BITS));
+        mVoiceSeq[target] = mSeq++;
+    }
+
+    private void mixVoice(int v, Clip clip, int[] accum, int frames) {
+        short[] samples = clip.samples;
+        int last = samples.length - 1;
+        long pos = mVoicePos[v];
+        int step = mVoiceStep[v];
+        for (int i = 0; i < frames; i++) {
+            int idx = (int) (pos >> FRAC_BITS);
+            if (idx >= last) {
+                mVoiceClip[v] = null;
+                return;
+            }
+            int frac = (int) (pos & FRAC_MASK);
+            int s0 = samples[idx];
+            int s1 = samples[idx + 1];
+            accum[i] += s0 + (((s1 - s0) * frac) >> FRAC_BITS);
+            pos += step;
+        }
+        mVoicePos[v] = pos;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+
+public class AudioTrackSink implements AudioMixer.Sink {
+
+    private AudioTrack  mTrack;
+
+    /*-----------------------------------------------------------------------*/
+
+    @Override
+    public void open(int sampleRate, int frames) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        int minSize = AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minSize, frames * 2 * 2), AudioTrack.MODE_STREAM);
+        mTrack.play();
+    }
+
+    @Override
+    public void write(short[] buf, int frames) {
+        mTrack.write(buf, 0, frames);
+    }
+
+    @Override
+    public void close() {
+        mTrack.stop();
+        mTrack.release();
+        mTrack = null;
+    }
+
+}
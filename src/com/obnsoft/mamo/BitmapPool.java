@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+/**
+ * Keeps mutable bitmaps which are no longer used, keyed by their size, and hands them
+ * out again for new bitmaps or as {@link BitmapFactory.Options#inBitmap} for decoding.
+ * The total bytes of the kept bitmaps are capped; the oldest ones are recycled first.
+ */
+public class BitmapPool {
+
+    private static final Bitmap.Config CONFIG = Bitmap.Config.ARGB_8888;
+
+    private static BitmapPool sInstance;
+
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBitmaps =
+            new HashMap<Long, ArrayDeque<Bitmap>>();
+    private final ArrayDeque<Bitmap> mOrder = new ArrayDeque<Bitmap>();
+    private final long  mMaxBytes;
+    private long        mBytes;
+    private int         mHits;
+    private int         mMisses;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the shared pool, which is allowed an eighth of the memory class.
+     */
+    public static synchronized BitmapPool getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager am =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new BitmapPool(am.getMemoryClass() * 1024L * 1024L / 8L);
+        }
+        return sInstance;
+    }
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a mutable bitmap cleared to transparent, reusing a pooled one if possible.
+     */
+    public Bitmap get(int width, int height) {
+        Bitmap bmp = take(width, height);
+        if (bmp == null) {
+            return Bitmap.createBitmap(width, height, CONFIG);
+        }
+        bmp.eraseColor(Color.TRANSPARENT);
+        return bmp;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. Bitmaps which can't be reused are recycled.
+     */
+    public synchronized void put(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+        int bytes = bmp.getByteCount();
+        if (!bmp.isMutable() || bmp.getConfig() != CONFIG || bytes > mMaxBytes) {
+            bmp.recycle();
+            return;
+        }
+        Long key = getKey(bmp.getWidth(), bmp.getHeight());
+        ArrayDeque<Bitmap> list = mBitmaps.get(key);
+        if (list == null) {
+            list = new ArrayDeque<Bitmap>();
+            mBitmaps.put(key, list);
+        }
+        list.add(bmp);
+        mOrder.add(bmp);
+        mBytes += bytes;
+        while (mBytes > mMaxBytes) {
+            Bitmap oldest = mOrder.poll();
+            mBitmaps.get(getKey(oldest.getWidth(), oldest.getHeight())).remove(oldest);
+            mBytes -= oldest.getByteCount();
+            oldest.recycle();
+        }
+    }
+
+    /**
+     * Decodes an encoded image into a mutable bitmap, reusing a pooled one of the same size.
+     */
+    public Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = CONFIG;
+        options.inBitmap = take(options.outWidth, options.outHeight);
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
+
+    /**
+     * Releases all the pooled bitmaps.
+     */
+    public synchronized void clear() {
+        for (Bitmap bmp : mOrder) {
+            bmp.recycle();
+        }
+        mBitmaps.clear();
+        mOrder.clear();
+        mBytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized float getHitRate() {
+        int total = mHits + mMisses;
+        return (total > 0) ? (float) mHits / total : 0f;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private synchronized Bitmap take(int width, int height) {
+        ArrayDeque<Bitmap> list = mBitmaps.get(getKey(width, height));
+        Bitmap bmp = (list != null) ? list.poll() : null;
+        if (bmp == null) {
+            mMisses++;
+            return null;
+        }
+        mOrder.remove(bmp);
+        mBytes -= bmp.getByteCount();
+        mHits++;
+        return bmp;
+    }
+
+    private static Long getKey(int width, int height) {
+        return Long.valueOf((long) width << 32 | height);
+    }
+
+}
@@ -25,6 +25,7 @@ import android.widget.TextView;
 public class CaptureActivity extends Activity {
 
     private int         mFrameSize;
+    private int         mOutputSize;
     private View        mCapFrame;
     private TextView    mLabelMsg;
 
@@ -35,6 +36,7 @@ public class CaptureActivity extends Activity {
         super.onCreate(savedInstanceState);
 
         mFrameSize = (TargetUtils.getScreenSize(this) >= 256) ? 256 : 128;
+        mOutputSize = TargetUtils.getCaptureSize(this);
         RelativeLayout.LayoutParams lp = new RelativeLayout.LayoutParams(mFrameSize, mFrameSize);
         lp.addRule(RelativeLayout.CENTER_IN_PARENT);
 
@@ -47,6 +49,10 @@ public class CaptureActivity extends Activity {
         return mFrameSize;
     }
 
+    protected int getOutputSize() {
+        return mOutputSize;
+    }
+
     protected void setMessage(int msgId) {
         mLabelMsg.setText(msgId);
     }
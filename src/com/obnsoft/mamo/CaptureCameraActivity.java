@@ -17,15 +17,15 @@
 package com.obnsoft.mamo;
 
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
@@ -42,13 +42,20 @@ import android.widget.Toast;
 public class CaptureCameraActivity extends CaptureActivity
         implements SurfaceHolder.Callback, PreviewCallback {
 
+    private static final int BURST_FRAMES = 5;
+
     private Camera      mCamera;
     private Camera.Size mCameraSize;
     private int         mCameraId;
+    private int         mCropSize;
     private SurfaceView mCamView;
     private int         mCamDeg;
 
     private boolean mFocusing;
+    private SharpnessMeter mMeter = new SharpnessMeter();
+    private int     mBurstCount;
+    private byte[]  mBestData;
+    private double  mBestScore;
 
     /*-----------------------------------------------------------------------*/
 
@@ -80,6 +87,12 @@ public class CaptureCameraActivity extends CaptureActivity
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        mMeter.release();
+        super.onDestroy();
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -95,8 +108,12 @@ public class CaptureCameraActivity extends CaptureActivity
                 @Override
                 public void onAutoFocus(boolean success, Camera camera) {
                     setMessage(R.string.msg_capture);
-                    mCamera.addCallbackBuffer(
-                            new byte[mCameraSize.width * mCameraSize.height * 3 / 2]);
+                    mBurstCount = 0;
+                    mBestData = null;
+                    for (int i = 0; i < BURST_FRAMES; i++) {
+                        mCamera.addCallbackBuffer(
+                                new byte[mCameraSize.width * mCameraSize.height * 3 / 2]);
+                    }
                     camera.autoFocus(null);
                     mFocusing = false;
                 }
@@ -109,7 +126,7 @@ public class CaptureCameraActivity extends CaptureActivity
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         try {
-            int size = getFrameSize();
+            int size = getOutputSize();
             CameraInfo info = new CameraInfo();
             mCameraId = 0;
             for (int i = 0, c = Camera.getNumberOfCameras(); i < c; i++) {
@@ -136,8 +153,15 @@ public class CaptureCameraActivity extends CaptureActivity
                 }
             }
             if (mCameraSize == null) {
-                mCameraSize = sizeList.get(0);
+                for (Camera.Size s : sizeList) {
+                    if (mCameraSize == null ||
+                            s.width * s.height > mCameraSize.width * mCameraSize.height) {
+                        mCameraSize = s;
+                    }
+                }
             }
+            mCropSize = Math.max(Math.min(size,
+                    Math.min(mCameraSize.width, mCameraSize.height)), getFrameSize());
             cp.setPreviewSize(mCameraSize.width, mCameraSize.height);
             mCamera.setParameters(cp);
             try {
@@ -168,39 +192,63 @@ public class CaptureCameraActivity extends CaptureActivity
 
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            setCanceledResult();
+            return;
+        }
         int dw = mCameraSize.width;
         int dh = mCameraSize.height;
-        int size = getFrameSize();
+        int size = Math.min(mCropSize, Math.min(dw, dh));
+        Tracer.begin("sharpness");
+        double score = mMeter.score(data, dw, (dw - size) / 2, (dh - size) / 2, size);
+        Tracer.end("sharpness");
+        if (mBestData == null || score > mBestScore) {
+            mBestData = data;
+            mBestScore = score;
+        }
+        if (++mBurstCount >= BURST_FRAMES) {
+            Tracer.begin("saveFrame");
+            saveFrame(mBestData);
+            Tracer.end("saveFrame");
+            mBestData = null;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void saveFrame(byte[] data) {
+        int dw = mCameraSize.width;
+        int dh = mCameraSize.height;
+        int size = mCropSize;
+        int outputSize = getOutputSize();
         int gw = (dw - size) / 2;
         int gh = (dh - size) / 2;
-        YuvImage yuvimage;
-        if (data != null) {
-            yuvimage = new YuvImage(data, ImageFormat.NV21, dw, dh, null);
-            String fname = TargetUtils.getTargetFileName();
-            TargetUtils.pileHistoryFile(this, fname);
-            try {
-                final int compression = 80;
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                yuvimage.compressToJpeg(new Rect(gw, gh, dw - gw, dh - gh), compression, baos);
-                Bitmap bitmap = BitmapFactory.decodeByteArray(baos.toByteArray(), 0, baos.size());
-                Matrix matrix = new Matrix();
-                matrix.postRotate(mCamDeg);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, size, size, matrix, false);
-                FileOutputStream out = openFileOutput(fname, MODE_PRIVATE);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, compression, out);
-                out.close();
-                setSuccessResult();
-            } catch (IOException e) {
-                e.printStackTrace();
-                setCanceledResult();
-            }
-        } else {
+        YuvImage yuvimage = new YuvImage(data, ImageFormat.NV21, dw, dh, null);
+        final int compression = 80;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yuvimage.compressToJpeg(new Rect(gw, gh, dw - gw, dh - gh), compression, baos);
+        BitmapPool pool = BitmapPool.getInstance(this);
+        Bitmap src = pool.decodeByteArray(baos.toByteArray(), 0, baos.size());
+        Matrix matrix = new Matrix();
+        matrix.postRotate(mCamDeg);
+        matrix.postScale((float) outputSize / size, (float) outputSize / size);
+        Bitmap bitmap = pool.get(outputSize, outputSize);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.translate(outputSize / 2f, outputSize / 2f);
+        canvas.concat(matrix);
+        canvas.translate(-size / 2f, -size / 2f);
+        canvas.drawBitmap(src, 0f, 0f, new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(src);
+        try {
+            TargetUtils.saveTarget(this, bitmap, Bitmap.CompressFormat.JPEG, compression);
+            setSuccessResult();
+        } catch (IOException e) {
+            e.printStackTrace();
             setCanceledResult();
         }
+        pool.put(bitmap);
     }
 
-    /*-----------------------------------------------------------------------*/
-
     private void setCameraOrientation() {
         int rotation = getWindowManager().getDefaultDisplay().getRotation();
         int dispDeg = 0;
@@ -226,6 +274,8 @@ public class CaptureCameraActivity extends CaptureActivity
             w = mCameraSize.width;
             h = mCameraSize.height;
         }
+        w = w * getFrameSize() / mCropSize;
+        h = h * getFrameSize() / mCropSize;
         mCamera.stopPreview();
         if (w != mCamView.getWidth() || h != mCamView.getHeight()) {
             RelativeLayout.LayoutParams lp = new RelativeLayout.LayoutParams(w, h);
@@ -16,7 +16,6 @@
 
 package com.obnsoft.mamo;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -25,9 +24,6 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Bundle;
@@ -37,6 +33,7 @@ import android.widget.Toast;
 public class CaptureGalleryActivity extends CaptureActivity {
 
     private static final int REQUEST_ID_CHOOSE_FILE = 1;
+    private static final int BAND_ROWS = 64;
 
     private boolean mIsOnResult;
     private Uri mUri;
@@ -77,7 +74,7 @@ public class CaptureGalleryActivity extends CaptureActivity {
     protected void onDestroy() {
         if (mBitmap != null) {
             mImgView.setBitmap(null);
-            mBitmap.recycle();
+            BitmapPool.getInstance(this).put(mBitmap);
             mBitmap = null;
         }
         super.onDestroy();
@@ -91,7 +88,8 @@ public class CaptureGalleryActivity extends CaptureActivity {
                 mUri = intent.getData();
                 if (mUri != null) {
                     if (mBitmap != null) {
-                        mBitmap.recycle();
+                        mImgView.setBitmap(null);
+                        BitmapPool.getInstance(this).put(mBitmap);
                     }
                     try {
                         InputStream in = getContentResolver().openInputStream(mUri);
@@ -112,27 +110,67 @@ public class CaptureGalleryActivity extends CaptureActivity {
 
     public void onShot(View v) {
         int size = getFrameSize();
-        Bitmap bmp = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
-        bmp.eraseColor(Color.TRANSPARENT);
-        Canvas canvas = new Canvas(bmp);
+        int outputSize = getOutputSize();
+        BitmapPool pool = BitmapPool.getInstance(this);
+        Bitmap bmp = pool.get(outputSize, outputSize);
         RectF destRect = mImgView.getBitmapDrawRect(new RectF());
         destRect.offset((size - mImgView.getWidth()) / 2f, (size - mImgView.getHeight()) / 2f);
-        canvas.drawBitmap(mBitmap,
-                new Rect(0, 0, mBitmap.getWidth(), mBitmap.getHeight()), destRect, null);
-        String fname = TargetUtils.getTargetFileName();
-        TargetUtils.pileHistoryFile(this, fname);
+        Tracer.begin("scaleVisibleArea");
+        scaleVisibleArea(destRect, size, bmp);
+        Tracer.end("scaleVisibleArea");
         try {
-            FileOutputStream out = openFileOutput(fname, MODE_PRIVATE);
-            bmp.compress(CompressFormat.PNG, 80, out);
-            out.close();
+            TargetUtils.saveTarget(this, bmp, CompressFormat.PNG, 80);
             setSuccessResult();
         } catch (IOException e) {
             e.printStackTrace();
             setCanceledResult();
         }
-        bmp.recycle();
+        pool.put(bmp);
     }
 
     /*-----------------------------------------------------------------------*/
 
+    /**
+     * Resamples the area of the source bitmap which is visible in the frame into the
+     * output bitmap. Only the source rows under each band of output rows are read.
+     */
+    private void scaleVisibleArea(RectF destRect, int frameSize, Bitmap output) {
+        int outputSize = output.getWidth();
+        int bw = mBitmap.getWidth();
+        int bh = mBitmap.getHeight();
+        float scaleX = bw / destRect.width();
+        float scaleY = bh / destRect.height();
+        float left = -destRect.left * scaleX;
+        float right = (frameSize - destRect.left) * scaleX;
+        float top = -destRect.top * scaleY;
+        float bottom = (frameSize - destRect.top) * scaleY;
+        int x0 = Math.max((int) Math.floor(left), 0);
+        int x1 = Math.min((int) Math.ceil(right), bw);
+        if (x1 <= x0) {
+            return;
+        }
+        AreaScaler scaler = new AreaScaler();
+        int[] dst = new int[outputSize * BAND_ROWS];
+        int[] src = null;
+        float step = (bottom - top) / outputSize;
+        for (int row = 0; row < outputSize; row += BAND_ROWS) {
+            int rows = Math.min(BAND_ROWS, outputSize - row);
+            float bandTop = top + step * row;
+            float bandBottom = bandTop + step * rows;
+            int y0 = Math.max((int) Math.floor(bandTop), 0);
+            int y1 = Math.min((int) Math.ceil(bandBottom), bh);
+            if (y1 <= y0) {
+                continue;
+            }
+            int length = (x1 - x0) * (y1 - y0);
+            if (src == null || src.length < length) {
+                src = new int[length];
+            }
+            mBitmap.getPixels(src, 0, x1 - x0, x0, y0, x1 - x0, y1 - y0);
+            scaler.scale(src, x1 - x0, y1 - y0, left - x0, bandTop - y0, right - x0,
+                    bandBottom - y0, dst, outputSize, rows);
+            output.setPixels(dst, 0, outputSize, 0, row, outputSize, rows);
+        }
+    }
+
 }
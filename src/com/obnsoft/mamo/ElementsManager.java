@@ -16,14 +16,67 @@
 
 package com.obnsoft.mamo;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ElementsManager {
 
     public static final float HIT_SIZE = 1f / 8f;
+    public static final float TARGET_SIZE = HIT_SIZE / 2f;
+    public static final float PIECE_SIZE = TARGET_SIZE / 4f;
+    public static final long DISPLAY_LATENCY = 16; // msec
+    public static final int HISTORY = 8;
+    public static final int WORLD_SCREENS = 8;
+    private static final int SECTORS_PER_SCREEN = 2;
 
-    private ArrayList<Element> mElementArray = new ArrayList<Element>();
-    private ArrayList<Element> mWorkArray = new ArrayList<Element>();
+    /* Vertex format shared with the renderer: x, y, u, v for 2 triangles per element */
+    public static final int FLOATS_PER_VERTEX = 4;
+    public static final int VERTICES_PER_ELEMENT = 6;
+    public static final int FLOATS_PER_ELEMENT = FLOATS_PER_VERTEX * VERTICES_PER_ELEMENT;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int TYPE_DEAD = -1;
+    private static final int TYPE_TARGET = 0;
+
+    /* Snapshot: a header followed by the element arrays, in little endian */
+    private static final int SNAPSHOT_MAGIC = 0x4D534E31; // "MSN1"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 32;
+    private static final int SNAPSHOT_CHUNK_SIZE = 64 * 1024;
+    private static final int SNAPSHOT_FLOATS = 6 + HISTORY * 2;    // per element
+    private static final int SNAPSHOT_INTS = 3;
+
+    private final Object mLock = new Object();
+    private AtomicInteger mRequestedTargets = new AtomicInteger();
+
+    private int     mCount = 0;
+    private int     mCapacity = 0;
+    private float[] mX, mY, mR;
+    private float[] mVX, mVY, mVR;
+    private int[]   mType;
+    private int[]   mBorn;
+    private int[]   mImage;
+    private float[] mHistX, mHistY;
+    private FloatBuffer mVertexBuffer;
+    private int     mVertexElements;
+    private float[] mTexCoords = new float[17 * 4];
+    private int[]   mImageCells = new int[1];
+    private int     mImageCount = 1;
+    private boolean mMixImages = false;
+
+    private long[]  mFrameTimes = new long[HISTORY];
+    private int[]   mTouchFrames = new int[16];
     private int     mFrames = 0;
     private float   mRangeX = 0.5f;
     private float   mRangeY = 0.5f;
@@ -32,14 +85,107 @@ public class ElementsManager {
     private boolean mSpeedTrick = false;
     private boolean mRotationTrick = false;
     private boolean mAngleTrick = false;
+    private long    mSeed;
+    private boolean mCollisions = false;
+    private int[]   mSweep;
+    private int     mSweepCount;
+    private int     mSweepBase;
+    private int[]   mRemap;
+    private int[]   mBand;
+    private volatile GameEventBus mEvents;
+
+    private int     mWorldScreens = 1;
+    private volatile float mCameraX;
+    private Sector[] mSectors = new Sector[0];
+    private int     mActiveFrom = -1;
+    private int     mActiveTo = -1;
+    private float   mActiveLeft;
+    private float   mActiveRight;
+    private int     mDormantCount;
+
+    private final Object mSnapshotLock = new Object();
+    private float[] mSnapshotFloats = new float[0];
+    private int[]   mSnapshotInts = new int[0];
+    private ByteBuffer mSnapshotBuffer;
+
+    /**
+     * The sleeping targets in a sector of the large world. They are kept as they were
+     * when they fell asleep, and advanced in closed form when they wake.
+     */
+    private static class Sector {
+        float[] mX, mY, mR, mVX, mVY, mVR;
+        int[]   mBorn, mImage, mSleep, mWake;
+        int     mCount;
+        int     mMinWake = Integer.MAX_VALUE;
+
+        Sector() {
+            resize(16);
+        }
+
+        int add() {
+            if (mCount == mX.length) {
+                resize(mCount * 2);
+            }
+            return mCount++;
+        }
+
+        void remove(int k) {
+            int last = --mCount;
+            mX[k] = mX[last];
+            mY[k] = mY[last];
+            mR[k] = mR[last];
+            mVX[k] = mVX[last];
+            mVY[k] = mVY[last];
+            mVR[k] = mVR[last];
+            mBorn[k] = mBorn[last];
+            mImage[k] = mImage[last];
+            mSleep[k] = mSleep[last];
+            mWake[k] = mWake[last];
+        }
+
+        private void resize(int size) {
+            mX = ElementsManager.resize(mX, size);
+            mY = ElementsManager.resize(mY, size);
+            mR = ElementsManager.resize(mR, size);
+            mVX = ElementsManager.resize(mVX, size);
+            mVY = ElementsManager.resize(mVY, size);
+            mVR = ElementsManager.resize(mVR, size);
+            mBorn = (mBorn == null) ? new int[size] : Arrays.copyOf(mBorn, size);
+            mImage = (mImage == null) ? new int[size] : Arrays.copyOf(mImage, size);
+            mSleep = (mSleep == null) ? new int[size] : Arrays.copyOf(mSleep, size);
+            mWake = (mWake == null) ? new int[size] : Arrays.copyOf(mWake, size);
+        }
+    }
 
     /*-----------------------------------------------------------------------*/
 
+    public ElementsManager() {
+        ensureCapacity(INITIAL_CAPACITY);
+        mSeed = System.nanoTime() ^ 0x9E3779B97F4A7C15L;
+        if (mSeed == 0) {
+            mSeed = 1;
+        }
+        mTexCoords[2] = 1f;
+        mTexCoords[3] = 1f;
+        for (int i = 0; i < 16; i++) {
+            int x1 = i % 4, y1 = i / 4;
+            int pos = (i + 1) * 4;
+            mTexCoords[pos] = x1 / 4f;
+            mTexCoords[pos + 1] = y1 / 4f;
+            mTexCoords[pos + 2] = (x1 + 1) / 4f;
+            mTexCoords[pos + 3] = (y1 + 1) / 4f;
+        }
+    }
+
     public void initialize() {
-        synchronized (mElementArray) {
-            mElementArray.clear();
-            mWorkArray.clear();
+        synchronized (mLock) {
+            mCount = 0;
+            mVertexElements = 0;
+            mRequestedTargets.set(0);
             mFrames = 0;
+            mSweepCount = 0;
+            mSweepBase = 0;
+            clearSectors();
         }
     }
 
@@ -53,132 +199,919 @@ public class ElementsManager {
         mAngleTrick = angle;
     }
 
+    /**
+     * Sets the half size of the visible field. The large world is as many times wider.
+     */
     public void setFieldRange(float rangeX, float rangeY) {
-        mRangeX = rangeX;
-        mRangeY = rangeY;
+        synchronized (mLock) {
+            wakeAllSectors();
+            mRangeX = rangeX;
+            mRangeY = rangeY;
+            setCameraX(mCameraX);
+        }
+    }
+
+    /**
+     * Sets the width of the world in screens; 1 for the normal field. In a wider world
+     * the field is cut into sectors half a screen wide, and only the targets in the
+     * sectors on the screen and next to it are simulated. The others sleep until the
+     * camera comes near or they may have moved near, and are advanced in closed form
+     * when they wake.
+     * The targets out of a narrower world are folded into it as if they had bounced.
+     */
+    public void setWorldScreens(int screens) {
+        synchronized (mLock) {
+            wakeAllSectors();
+            mWorldScreens = Math.max(screens, 1);
+            foldTargets(mRangeX * mWorldScreens);
+            mSectors = new Sector[(mWorldScreens > 1) ? mWorldScreens * SECTORS_PER_SCREEN : 0];
+            for (int s = 0; s < mSectors.length; s++) {
+                mSectors[s] = new Sector();
+            }
+            mActiveFrom = mActiveTo = -1;
+            setCameraX(0f);
+        }
+    }
+
+    public int getWorldScreens() {
+        return mWorldScreens;
+    }
+
+    /**
+     * Moves the center of the view in the world, within the ends of the world.
+     */
+    public void setCameraX(float x) {
+        float limit = mRangeX * (mWorldScreens - 1);
+        mCameraX = Math.max(-limit, Math.min(x, limit));
+    }
+
+    public float getCameraX() {
+        return mCameraX;
+    }
+
+    /**
+     * Sets the images which new targets are made from.
+     * @param texCoords the texture coordinates of each image; the whole image followed by
+     *          16 pieces as (u0, v0, u1, v1)
+     * @param images the indexes of the images in texCoords; the first one is the current target
+     */
+    public void setImages(float[] texCoords, int[] images, int count) {
+        synchronized (mLock) {
+            mTexCoords = Arrays.copyOf(texCoords, texCoords.length);
+            mImageCells = Arrays.copyOf(images, count);
+            mImageCount = count;
+        }
     }
 
-    public void forwardElements() {
-        synchronized (mElementArray) {
-            if (++mFrames % mInterval == 0) {
+    public void setMixImages(boolean mix) {
+        mMixImages = mix;
+    }
+
+    /**
+     * Sets the bus which the hits and the spawns are posted to, or null.
+     */
+    public void setEventBus(GameEventBus events) {
+        mEvents = events;
+    }
+
+    public GameEventBus getEventBus() {
+        return mEvents;
+    }
+
+    /**
+     * Enables elastic collisions between the targets, whose radius is half of
+     * {@link #HIT_SIZE}.
+     */
+    public void setCollisions(boolean collisions) {
+        synchronized (mLock) {
+            mCollisions = collisions;
+            mSweepCount = 0;
+            mSweepBase = 0;
+        }
+    }
+
+    /**
+     * Advances the simulation by one frame, and writes the vertices of the living elements
+     * into the vertex buffer.
+     * @param frameTime the uptime in msec when the frame is being rendered
+     */
+    public void forwardElements(long frameTime) {
+        Tracer.begin("forwardElements");
+        synchronized (mLock) {
+            int slot = ++mFrames % HISTORY;
+            mFrameTimes[slot] = frameTime;
+            if (mFrames % mInterval == 0) {
                 newTarget();
             }
-            for (Element e : mElementArray) {
-                e.x += e.vx;
-                e.y += e.vy;
-                e.r += e.vr;
-                if (e.r < 0f)   e.r += 360f;
-                if (e.r > 360f) e.r -= 360f;
-                if (e.type == -1) {
-                    mWorkArray.add(e);
-                } else if (e.type == 0) {
-                    if (e.x < -mRangeX && e.vx < 0 || e.x > mRangeX && e.vx > 0) e.vx *= -1f;
-                    if (e.y < -mRangeY && e.vy < 0 || e.y > mRangeY && e.vy > 0) e.vy *= -1f;
+            for (int n = mRequestedTargets.getAndSet(0); n > 0; n--) {
+                newTarget();
+            }
+            boolean world = (mWorldScreens > 1);
+            if (world) {
+                updateSectors();
+            }
+            float rangeX = mRangeX * mWorldScreens;
+            int count = mCount;
+            int w = 0;
+            for (int i = 0; i < count; i++) {
+                int type = mType[i];
+                mRemap[i] = -1;
+                if (type == TYPE_DEAD) {
+                    continue;
+                }
+                float x = mX[i] + mVX[i];
+                float y = mY[i] + mVY[i];
+                float r = mR[i] + mVR[i];
+                if (r < 0f)   r += 360f;
+                if (r > 360f) r -= 360f;
+                boolean inactive = world && (x < mActiveLeft || x > mActiveRight);
+                if (type == TYPE_TARGET) {
+                    if (x < -rangeX && mVX[i] < 0 || x > rangeX && mVX[i] > 0) mVX[i] *= -1f;
+                    if (y < -mRangeY && mVY[i] < 0 || y > mRangeY && mVY[i] > 0) mVY[i] *= -1f;
+                    if (inactive) {
+                        sleepTarget(i, x, y, r);
+                        continue;
+                    }
                 } else {
-                    e.vy -= 1 / 1024f;
-                    if (e.x < -mRangeX || e.x > mRangeX || e.y < -mRangeY) {
-                        e.type = -1;
+                    mVY[i] -= 1 / 1024f;
+                    if (x < -rangeX || x > rangeX || y < -mRangeY || inactive) {
+                        continue;
                     }
                 }
+                if (w != i) {
+                    moveElement(i, w);
+                }
+                mX[w] = x;
+                mY[w] = y;
+                mR[w] = r;
+                if (type == TYPE_TARGET) {
+                    mHistX[w * HISTORY + slot] = x;
+                    mHistY[w * HISTORY + slot] = y;
+                    mRemap[i] = w;
+                }
+                w++;
             }
-            for (Element e : mWorkArray) {
-                mElementArray.remove(e);
+            mCount = w;
+            if (mCollisions) {
+                collideTargets(count);
             }
-            mWorkArray.clear();
+            writeVertices();
             if (mFlashLevel > 0f) {
                 mFlashLevel -= 1f / 16f;
             }
         }
+        Tracer.counter("elements", mCount);
+        Tracer.counter("dormant", mDormantCount);
+        Tracer.end("forwardElements");
     }
 
     public void newTarget() {
-        synchronized (mElementArray) {
-            Element e = new Element();
-            e.vx = (float) ((Math.random() - 0.5) / 64.0);
-            e.vy = (float) ((Math.random() - 0.5) / 64.0);
-            e.vr = (float) ((Math.random() - 0.5) * 4.0);
-            e.x = (float) ((Math.random() - 0.5) * mRangeX * 2.0);
-            e.y = (float) ((Math.random() - 0.5) * mRangeY * 2.0);;
-            e.r = (float) (Math.random() * 360.0);
-            e.type = 0;
+        synchronized (mLock) {
+            int i = addElement();
+            float vx = (float) ((random() - 0.5) / 64.0);
+            float vy = (float) ((random() - 0.5) / 64.0);
+            float vr = (float) ((random() - 0.5) * 4.0);
+            float x = (float) ((random() - 0.5) * mRangeX * mWorldScreens * 2.0);
+            float y = (float) ((random() - 0.5) * mRangeY * 2.0);
+            mR[i] = (float) (random() * 360.0);
+            mType[i] = TYPE_TARGET;
+            mBorn[i] = mFrames;
+            mImage[i] = mImageCells[mMixImages ? (int) (random() * mImageCount) : 0];
             if (mSpeedTrick) {
-                double deg = Math.random() * Math.PI * 2.0;
-                e.vx = (float) (Math.cos(deg) / 16.0);
-                e.vy = (float) (Math.sin(deg) / 16.0);
+                double deg = random() * Math.PI * 2.0;
+                vx = (float) (Math.cos(deg) / 16.0);
+                vy = (float) (Math.sin(deg) / 16.0);
             }
             if (mRotationTrick) {
-                e.vr = (e.vx < 0) ? -10 : 10;
+                vr = (vx < 0) ? -10 : 10;
             }
             if (mAngleTrick) {
-                if (Math.random() < 0.5) {
-                    e.vx = 0f;
+                if (random() < 0.5) {
+                    vx = 0f;
                 } else {
-                    e.vy = 0f;
+                    vy = 0f;
                 }
-                e.vr = 0f;
+                vr = 0f;
             }
-            mElementArray.add(e);
+            mX[i] = x;
+            mY[i] = y;
+            mVX[i] = vx;
+            mVY[i] = vy;
+            mVR[i] = vr;
+            Arrays.fill(mHistX, i * HISTORY, (i + 1) * HISTORY, x);
+            Arrays.fill(mHistY, i * HISTORY, (i + 1) * HISTORY, y);
         }
     }
 
-    public int judgeTarget(float x, float y) {
+    /**
+     * Requests a new target from any thread without taking the lock.
+     * It will be created at the next frame.
+     */
+    public void requestTarget() {
+        mRequestedTargets.incrementAndGet();
+    }
+
+    /**
+     * Judges several touch points at once in one lock.
+     * Each point is compared with the positions which were on the screen at its time,
+     * and each target is destroyed at most once, by the first point in the arrays that hits it.
+     * @param times the uptimes in msec of the points, or null to use the current positions
+     */
+    public int judgeTargets(float[] xs, float[] ys, long[] times, int n) {
         int ret = 0;
-        synchronized (mElementArray) {
-            for (Element e : mElementArray) {
-                if (e.type == 0 && Math.hypot(x - e.x, y - e.y) < HIT_SIZE) {
-                    destroyTarget(e);
-                    ret++;
+        Tracer.begin("judgeTargets.lock");
+        synchronized (mLock) {
+            Tracer.end("judgeTargets.lock");
+            Tracer.begin("judgeTargets");
+            if (mTouchFrames.length < n) {
+                mTouchFrames = new int[n * 2];
+            }
+            for (int i = 0; i < n; i++) {
+                mTouchFrames[i] = (times == null) ? mFrames : findDisplayedFrame(times[i]);
+            }
+            for (int e = 0, count = mCount; e < count; e++) {
+                if (mType[e] == TYPE_TARGET) {
+                    for (int i = 0; i < n; i++) {
+                        int frame = mTouchFrames[i];
+                        if (frame < mBorn[e]) {
+                            continue;
+                        }
+                        int hist = e * HISTORY + frame % HISTORY;
+                        float dx = xs[i] - mHistX[hist];
+                        float dy = ys[i] - mHistY[hist];
+                        if (dx * dx + dy * dy < HIT_SIZE * HIT_SIZE) {
+                            destroyTarget(e);
+                            ret++;
+                            break;
+                        }
+                    }
                 }
             }
-            mElementArray.addAll(mWorkArray);
-            mWorkArray.clear();
+            Tracer.end("judgeTargets");
         }
+        postEvent(GameEventBus.EVENT_HIT, ret);
         return ret;
     }
 
     public int throwBomb() {
         int ret = 0;
-        synchronized (mElementArray) {
-            for (Element e : mElementArray) {
-                if (e.type == 0) {
+        synchronized (mLock) {
+            for (int e = 0, count = mCount; e < count; e++) {
+                if (mType[e] == TYPE_TARGET) {
                     destroyTarget(e);
                     ret++;
                 }
             }
-            mElementArray.addAll(mWorkArray);
-            mWorkArray.clear();
         }
         if (ret > 0) {
             mFlashLevel = 1.0f;
         }
+        postEvent(GameEventBus.EVENT_HIT, ret);
         return ret;
     }
 
-    public ArrayList<Element> getArrayList() {
-        return mElementArray;
+    /**
+     * Skips frames in which nothing was animating, without passing the next spawn.
+     */
+    public void skipFrames(int frames) {
+        synchronized (mLock) {
+            mFrames += Math.min(frames, getFramesToNextSpawn() - 1);
+        }
+    }
+
+    public boolean isAnimating() {
+        synchronized (mLock) {
+            return mCount > 0 || mFlashLevel > 0f || mRequestedTargets.get() > 0;
+        }
+    }
+
+    public int getFramesToNextSpawn() {
+        return mInterval - mFrames % mInterval;
+    }
+
+    /**
+     * Returns the number of the elements being simulated, not counting the sleeping ones.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getDormantCount() {
+        return mDormantCount;
+    }
+
+    /**
+     * Returns the number of elements the arrays can hold. They never shrink.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the buffer which {@link #forwardElements(long)} writes the vertices into.
+     * This must be accessed from the thread calling {@link #forwardElements(long)}.
+     */
+    public FloatBuffer getVertexBuffer() {
+        return mVertexBuffer;
+    }
+
+    public int getVertexCount() {
+        return mVertexElements * VERTICES_PER_ELEMENT;
     }
 
     public float getFlashLevel() {
         return mFlashLevel;
     }
 
+    /**
+     * Writes the whole simulation into the file, replacing it atomically. The arrays are
+     * copied under the lock into ones kept for the snapshots, and streamed through a
+     * fixed buffer after releasing it, so the frames are only held up by the copy and
+     * nothing is allocated unless the simulation has grown. The frame times aren't
+     * written because they are meaningless in another process, nor are the interval and
+     * the tricks, which are chosen for the day. The sleeping targets of the large world
+     * are woken and written as usual.
+     */
+    public void saveSnapshot(File file) throws IOException {
+        synchronized (mSnapshotLock) {
+            int count, frames, requested;
+            float flashLevel;
+            long seed;
+            float[] floats;
+            int[] ints;
+            synchronized (mLock) {
+                wakeAllSectors();
+                count = mCount;
+                frames = mFrames;
+                requested = mRequestedTargets.get();
+                flashLevel = mFlashLevel;
+                seed = mSeed;
+                if (mSnapshotFloats.length < count * SNAPSHOT_FLOATS) {
+                    mSnapshotFloats = new float[mCapacity * SNAPSHOT_FLOATS];
+                    mSnapshotInts = new int[mCapacity * SNAPSHOT_INTS];
+                }
+                floats = mSnapshotFloats;
+                ints = mSnapshotInts;
+                System.arraycopy(mX, 0, floats, 0, count);
+                System.arraycopy(mY, 0, floats, count, count);
+                System.arraycopy(mR, 0, floats, count * 2, count);
+                System.arraycopy(mVX, 0, floats, count * 3, count);
+                System.arraycopy(mVY, 0, floats, count * 4, count);
+                System.arraycopy(mVR, 0, floats, count * 5, count);
+                System.arraycopy(mHistX, 0, floats, count * 6, count * HISTORY);
+                System.arraycopy(mHistY, 0, floats, count * (6 + HISTORY), count * HISTORY);
+                System.arraycopy(mType, 0, ints, 0, count);
+                System.arraycopy(mBorn, 0, ints, count, count);
+                System.arraycopy(mImage, 0, ints, count * 2, count);
+            }
+
+            if (mSnapshotBuffer == null) {
+                mSnapshotBuffer = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK_SIZE);
+                mSnapshotBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer buf = mSnapshotBuffer;
+            buf.clear();
+            File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                FileChannel channel = out.getChannel();
+                buf.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+                buf.putInt(count).putInt(frames);
+                buf.putFloat(flashLevel).putInt(requested).putLong(seed);
+                writeFloats(channel, buf, floats, 0, count * 6);
+                writeInts(channel, buf, ints, 0, count * SNAPSHOT_INTS);
+                writeFloats(channel, buf, floats, count * 6, count * HISTORY * 2);
+                drain(channel, buf);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Replaces the simulation with the one in the file, which is mapped and copied into
+     * the arrays in bulk. The snapshot is rejected as a whole if any type or image of the
+     * elements is out of range, as they are used as indexes when drawing.
+     * @return false if the file doesn't exist or isn't a valid snapshot
+     */
+    public boolean loadSnapshot(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                if (size < SNAPSHOT_HEADER_SIZE) {
+                    return false;
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                if (map.getInt() != SNAPSHOT_MAGIC || map.getInt() != SNAPSHOT_VERSION) {
+                    return false;
+                }
+                int count = map.getInt();
+                int frames = map.getInt();
+                float flashLevel = map.getFloat();
+                int requested = map.getInt();
+                long seed = map.getLong();
+                long elementSize = (SNAPSHOT_FLOATS + SNAPSHOT_INTS) * 4;
+                if (count < 0 || frames < 0 || requested < 0 || seed == 0 ||
+                        size != SNAPSHOT_HEADER_SIZE + count * elementSize) {
+                    return false;
+                }
+                int types = SNAPSHOT_HEADER_SIZE + count * 6 * 4;
+                for (int i = 0; i < count; i++) {
+                    int type = map.getInt(types + i * 4);
+                    int image = map.getInt(types + (count * 2 + i) * 4);
+                    if (type < TYPE_DEAD || type > TextureAtlas.PIECES ||
+                            image < 0 || image >= TextureAtlas.CELLS) {
+                        return false;
+                    }
+                }
+                synchronized (mLock) {
+                    ensureCapacity(Math.max(count, INITIAL_CAPACITY));
+                    readFloats(map, mX, count);
+                    readFloats(map, mY, count);
+                    readFloats(map, mR, count);
+                    readFloats(map, mVX, count);
+                    readFloats(map, mVY, count);
+                    readFloats(map, mVR, count);
+                    readInts(map, mType, count);
+                    readInts(map, mBorn, count);
+                    readInts(map, mImage, count);
+                    readFloats(map, mHistX, count * HISTORY);
+                    readFloats(map, mHistY, count * HISTORY);
+                    mCount = count;
+                    mVertexElements = 0;
+                    mFrames = frames;
+                    mFlashLevel = flashLevel;
+                    mRequestedTargets.set(requested);
+                    mSeed = seed;
+                    mSweepCount = 0;
+                    mSweepBase = 0;
+                    clearSectors();
+                    Arrays.fill(mFrameTimes, 0);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
     /*-----------------------------------------------------------------------*/
 
-    private void destroyTarget(Element e) {
+    /**
+     * Bounces the targets off each other. The field is cut into horizontal bands as high
+     * as the contact distance, and the targets are kept in a list sorted by band and then
+     * by x across frames. The list is carried over through the compaction of the arrays
+     * and the new targets are appended, so it is nearly sorted and the insertion sort
+     * costs little. Each target is then swept against the following ones in its band and
+     * the ones in the next band, only while they are closer than the contact distance
+     * along x.
+     * @param count the number of elements before the compaction of this frame
+     */
+    private void collideTargets(int count) {
+        int[] sweep = mSweep;
+        int n = 0;
+        for (int k = 0; k < mSweepCount; k++) {
+            int e = mRemap[sweep[k]];
+            if (e >= 0) {
+                sweep[n++] = e;
+            }
+        }
+        for (int i = mSweepBase; i < count; i++) {
+            if (mRemap[i] >= 0) {
+                sweep[n++] = mRemap[i];
+            }
+        }
+        mSweepCount = n;
+        mSweepBase = mCount;
+
+        final float d = HIT_SIZE;
+        float[] xs = mX, ys = mY, vxs = mVX, vys = mVY;
+        int[] bands = mBand;
+        for (int k = 0; k < n; k++) {
+            int e = sweep[k];
+            bands[e] = (int) Math.floor(ys[e] / d);
+        }
+        for (int k = 1; k < n; k++) {
+            int e = sweep[k];
+            int band = bands[e];
+            float x = xs[e];
+            int j = k - 1;
+            while (j >= 0 && (bands[sweep[j]] > band ||
+                    bands[sweep[j]] == band && xs[sweep[j]] > x)) {
+                sweep[j + 1] = sweep[j];
+                j--;
+            }
+            sweep[j + 1] = e;
+        }
+
+        int next = 0;
+        for (int k = 0; k < n; k++) {
+            int a = sweep[k];
+            int band = bands[a];
+            float xa = xs[a];
+            if (k == 0 || bands[sweep[k - 1]] != band) {
+                next = k;
+                while (next < n && bands[sweep[next]] == band) {
+                    next++;
+                }
+            }
+            for (int m = k + 1; m < n; m++) {
+                int b = sweep[m];
+                if (bands[b] != band || xs[b] - xa >= d) {
+                    break;
+                }
+                bounce(a, b);
+            }
+            while (next < n && bands[sweep[next]] == band + 1 && xs[sweep[next]] <= xa - d) {
+                next++;
+            }
+            for (int m = next; m < n; m++) {
+                int b = sweep[m];
+                if (bands[b] != band + 1 || xs[b] - xa >= d) {
+                    break;
+                }
+                bounce(a, b);
+            }
+        }
+    }
+
+    /**
+     * Exchanges the velocities of two targets along the normal, if they are in contact
+     * and approaching each other.
+     */
+    private void bounce(int a, int b) {
+        float dx = mX[b] - mX[a];
+        float dy = mY[b] - mY[a];
+        float dist2 = dx * dx + dy * dy;
+        if (dist2 >= HIT_SIZE * HIT_SIZE || dist2 == 0f) {
+            return;
+        }
+        float dot = (mVX[b] - mVX[a]) * dx + (mVY[b] - mVY[a]) * dy;
+        if (dot < 0f) {
+            float impulse = dot / dist2;
+            mVX[a] += impulse * dx;
+            mVY[a] += impulse * dy;
+            mVX[b] -= impulse * dx;
+            mVY[b] -= impulse * dy;
+        }
+    }
+
+    private void postEvent(int type, int count) {
+        GameEventBus events = mEvents;
+        if (events != null && count > 0) {
+            events.post(type, count);
+        }
+    }
+
+    /**
+     * Finds the sectors around the camera, and wakes the sleeping targets which are due.
+     * If the camera has moved to other sectors, all the sleeping targets are checked.
+     */
+    private void updateSectors() {
+        float width = mRangeX * 2f / SECTORS_PER_SCREEN;
+        float left = -mRangeX * mWorldScreens;
+        int last = mSectors.length - 1;
+        int from = Math.max(sectorOf(mCameraX - mRangeX) - 1, 0);
+        int to = Math.min(sectorOf(mCameraX + mRangeX) + 1, last);
+        boolean moved = (from != mActiveFrom || to != mActiveTo);
+        mActiveFrom = from;
+        mActiveTo = to;
+        mActiveLeft = (from == 0) ? Float.NEGATIVE_INFINITY : left + from * width;
+        mActiveRight = (to == last) ? Float.POSITIVE_INFINITY : left + (to + 1) * width;
+        int frame = mFrames - 1;
+        for (Sector sector : mSectors) {
+            if (sector.mCount > 0 && (moved || sector.mMinWake <= frame)) {
+                wakeSector(sector, moved, false, frame);
+            }
+        }
+    }
+
+    /**
+     * Wakes the sleeping targets in the sector which are due or all of them, advancing
+     * them to the frame. The ones which are still out of the active sectors sleep again,
+     * in the sector where they are now.
+     * @param anywhere true to wake them wherever they are
+     */
+    private void wakeSector(Sector sector, boolean all, boolean anywhere, int frame) {
+        float rangeX = mRangeX * mWorldScreens;
+        int minWake = Integer.MAX_VALUE;
+        for (int k = sector.mCount - 1; k >= 0; k--) {
+            if (!all && sector.mWake[k] > frame) {
+                minWake = Math.min(minWake, sector.mWake[k]);
+                continue;
+            }
+            int t = frame - sector.mSleep[k];
+            float x = foldPosition(sector.mX[k], sector.mVX[k], t, rangeX);
+            float y = foldPosition(sector.mY[k], sector.mVY[k], t, mRangeY);
+            float vx = foldVelocity(sector.mX[k], sector.mVX[k], t, rangeX);
+            float vy = foldVelocity(sector.mY[k], sector.mVY[k], t, mRangeY);
+            float r = (sector.mR[k] + sector.mVR[k] * t) % 360f;
+            if (r < 0f) r += 360f;
+            if (anywhere || x >= mActiveLeft && x <= mActiveRight) {
+                int i = addElement();
+                mX[i] = x;
+                mY[i] = y;
+                mR[i] = r;
+                mVX[i] = vx;
+                mVY[i] = vy;
+                mVR[i] = sector.mVR[k];
+                mType[i] = TYPE_TARGET;
+                mBorn[i] = sector.mBorn[k];
+                mImage[i] = sector.mImage[k];
+                Arrays.fill(mHistX, i * HISTORY, (i + 1) * HISTORY, x);
+                Arrays.fill(mHistY, i * HISTORY, (i + 1) * HISTORY, y);
+                sector.remove(k);
+                mDormantCount--;
+                continue;
+            }
+            int wake = getWakeFrame(x, vx, frame);
+            Sector dest = mSectors[sectorOf(x)];
+            int d = k;
+            if (dest != sector) {
+                d = dest.add();
+                dest.mVR[d] = sector.mVR[k];
+                dest.mBorn[d] = sector.mBorn[k];
+                dest.mImage[d] = sector.mImage[k];
+                dest.mMinWake = Math.min(dest.mMinWake, wake);
+                sector.remove(k);
+            } else {
+                minWake = Math.min(minWake, wake);
+            }
+            dest.mX[d] = x;
+            dest.mY[d] = y;
+            dest.mR[d] = r;
+            dest.mVX[d] = vx;
+            dest.mVY[d] = vy;
+            dest.mSleep[d] = frame;
+            dest.mWake[d] = wake;
+        }
+        sector.mMinWake = minWake;
+    }
+
+    /**
+     * Folds the targets beyond the walls at -range and range back between them.
+     */
+    private void foldTargets(float range) {
+        for (int i = 0; i < mCount; i++) {
+            float x = mX[i];
+            if (mType[i] != TYPE_TARGET || x >= -range && x <= range) {
+                continue;
+            }
+            mVX[i] = foldVelocity(x, mVX[i], 0, range);
+            mX[i] = x = foldPosition(x, 0f, 0, range);
+            Arrays.fill(mHistX, i * HISTORY, (i + 1) * HISTORY, x);
+        }
+    }
+
+    private void wakeAllSectors() {
+        for (Sector sector : mSectors) {
+            wakeSector(sector, true, true, mFrames);
+        }
+    }
+
+    private void clearSectors() {
+        for (Sector sector : mSectors) {
+            sector.mCount = 0;
+            sector.mMinWake = Integer.MAX_VALUE;
+        }
+        mDormantCount = 0;
+        mActiveFrom = mActiveTo = -1;
+    }
+
+    private void sleepTarget(int i, float x, float y, float r) {
+        Sector sector = mSectors[sectorOf(x)];
+        int k = sector.add();
+        sector.mX[k] = x;
+        sector.mY[k] = y;
+        sector.mR[k] = r;
+        sector.mVX[k] = mVX[i];
+        sector.mVY[k] = mVY[i];
+        sector.mVR[k] = mVR[i];
+        sector.mBorn[k] = mBorn[i];
+        sector.mImage[k] = mImage[i];
+        sector.mSleep[k] = mFrames;
+        sector.mWake[k] = getWakeFrame(x, mVX[i], mFrames);
+        sector.mMinWake = Math.min(sector.mMinWake, sector.mWake[k]);
+        mDormantCount++;
+    }
+
+    private int sectorOf(float x) {
+        int s = (int) Math.floor((x + mRangeX * mWorldScreens) /
+                (mRangeX * 2f / SECTORS_PER_SCREEN));
+        return Math.max(0, Math.min(s, mSectors.length - 1));
+    }
+
+    /**
+     * Returns the earliest frame when the target can reach the active sectors, which it
+     * can't before it goes straight to them.
+     */
+    private int getWakeFrame(float x, float vx, int frame) {
+        float distance = (x < mActiveLeft) ? mActiveLeft - x : x - mActiveRight;
+        if (vx == 0f) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(frame + (long) (distance / Math.abs(vx)), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the position after moving for the frames between the walls at -range and
+     * range, as a triangle wave.
+     */
+    private static float foldPosition(float p, float v, int t, float range) {
+        double len = 2.0 * range;
+        double m = mod(p + range + (double) v * t, 2.0 * len);
+        return (float) ((m <= len) ? m - range : 2.0 * len - m - range);
+    }
+
+    private static float foldVelocity(float p, float v, int t, float range) {
+        double len = 2.0 * range;
+        return (mod(p + range + (double) v * t, 2.0 * len) <= len) ? v : -v;
+    }
+
+    private static double mod(double a, double b) {
+        double m = a % b;
+        return (m < 0.0) ? m + b : m;
+    }
+
+    /**
+     * Returns a pseudo random number in [0, 1) by xorshift64*, whose state is saved in
+     * the snapshot so that a restored simulation goes on the same way.
+     */
+    private double random() {
+        long x = mSeed;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        mSeed = x;
+        return ((x * 2685821657736338717L) >>> 11) * (1.0 / (1L << 53));
+    }
+
+    private int findDisplayedFrame(long time) {
+        int oldest = Math.max(mFrames - HISTORY + 1, 0);
+        for (int frame = mFrames; frame > oldest; frame--) {
+            if (mFrameTimes[frame % HISTORY] + DISPLAY_LATENCY <= time) {
+                return frame;
+            }
+        }
+        return oldest;
+    }
+
+    private void destroyTarget(int e) {
         for (int i = 1; i <= 16; i++) {
             if (i % 3 != 1 || i > 4 && i < 13) {
-                Element p = new Element();
-                p.vx = (float) ((Math.random() - 0.5) / 16.0);
-                p.vy = (float) ((Math.random() - 0.5) / 16.0);
-                p.vr = (float) ((Math.random() - 0.5) * 32.0);
-                p.x = e.x + p.vx;
-                p.y = e.y + p.vy;
-                p.r = e.r + p.vr;
-                p.type = i;
-                mWorkArray.add(p);
-            }
-        }
-        e.type = -1;
+                int p = addElement();
+                mVX[p] = (float) ((random() - 0.5) / 16.0);
+                mVY[p] = (float) ((random() - 0.5) / 16.0);
+                mVR[p] = (float) ((random() - 0.5) * 32.0);
+                mX[p] = mX[e] + mVX[p];
+                mY[p] = mY[e] + mVY[p];
+                mR[p] = mR[e] + mVR[p];
+                mType[p] = i;
+                mBorn[p] = mFrames;
+                mImage[p] = mImage[e];
+            }
+        }
+        mType[e] = TYPE_DEAD;
+    }
+
+    private int addElement() {
+        if (mCount == mCapacity) {
+            ensureCapacity(mCapacity * 2);
+        }
+        return mCount++;
+    }
+
+    private void moveElement(int from, int to) {
+        mVX[to] = mVX[from];
+        mVY[to] = mVY[from];
+        mVR[to] = mVR[from];
+        mType[to] = mType[from];
+        mBorn[to] = mBorn[from];
+        mImage[to] = mImage[from];
+        System.arraycopy(mHistX, from * HISTORY, mHistX, to * HISTORY, HISTORY);
+        System.arraycopy(mHistY, from * HISTORY, mHistY, to * HISTORY, HISTORY);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mCapacity) {
+            return;
+        }
+        mX = resize(mX, capacity);
+        mY = resize(mY, capacity);
+        mR = resize(mR, capacity);
+        mVX = resize(mVX, capacity);
+        mVY = resize(mVY, capacity);
+        mVR = resize(mVR, capacity);
+        mType = (mType == null) ? new int[capacity] : Arrays.copyOf(mType, capacity);
+        mBorn = (mBorn == null) ? new int[capacity] : Arrays.copyOf(mBorn, capacity);
+        mImage = (mImage == null) ? new int[capacity] : Arrays.copyOf(mImage, capacity);
+        mSweep = (mSweep == null) ? new int[capacity] : Arrays.copyOf(mSweep, capacity);
+        mRemap = new int[capacity];
+        mBand = new int[capacity];
+        mHistX = resize(mHistX, capacity * HISTORY);
+        mHistY = resize(mHistY, capacity * HISTORY);
+        mCapacity = capacity;
+    }
+
+    private static float[] resize(float[] array, int size) {
+        return (array == null) ? new float[size] : Arrays.copyOf(array, size);
+    }
+
+    private static void writeFloats(FileChannel channel, ByteBuffer buf, float[] array,
+            int from, int n) throws IOException {
+        for (int pos = from, end = from + n; pos < end; ) {
+            if (buf.remaining() < 4) {
+                drain(channel, buf);
+            }
+            int len = Math.min(end - pos, buf.remaining() / 4);
+            buf.asFloatBuffer().put(array, pos, len);
+            buf.position(buf.position() + len * 4);
+            pos += len;
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buf, int[] array,
+            int from, int n) throws IOException {
+        for (int pos = from, end = from + n; pos < end; ) {
+            if (buf.remaining() < 4) {
+                drain(channel, buf);
+            }
+            int len = Math.min(end - pos, buf.remaining() / 4);
+            buf.asIntBuffer().put(array, pos, len);
+            buf.position(buf.position() + len * 4);
+            pos += len;
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private static void readFloats(ByteBuffer buf, float[] array, int n) {
+        FloatBuffer view = buf.asFloatBuffer();
+        view.get(array, 0, n);
+        buf.position(buf.position() + n * 4);
+    }
+
+    private static void readInts(ByteBuffer buf, int[] array, int n) {
+        IntBuffer view = buf.asIntBuffer();
+        view.get(array, 0, n);
+        buf.position(buf.position() + n * 4);
+    }
+
+    private void writeVertices() {
+        int floats = mCount * FLOATS_PER_ELEMENT;
+        if (mVertexBuffer == null || mVertexBuffer.capacity() < floats) {
+            ByteBuffer bb = ByteBuffer.allocateDirect(mCapacity * FLOATS_PER_ELEMENT * BYTES_PER_FLOAT);
+            bb.order(ByteOrder.nativeOrder());
+            mVertexBuffer = bb.asFloatBuffer();
+        }
+        FloatBuffer buf = mVertexBuffer;
+        float[] tex = mTexCoords;
+        int images = tex.length / (TextureAtlas.ENTRIES_PER_CELL * 4);
+        buf.clear();
+        for (int i = 0, count = mCount; i < count; i++) {
+            int type = mType[i];
+            float size = (type == TYPE_TARGET) ? TARGET_SIZE : PIECE_SIZE;
+            double rad = Math.toRadians(mR[i]);
+            float c = (float) Math.cos(rad) * size;
+            float s = (float) Math.sin(rad) * size;
+            float x = mX[i], y = mY[i];
+            int image = mMixImages ? mImage[i] : mImageCells[0];
+            if (image >= images) {
+                image = 0;  // restored before the atlas has been published
+            }
+            int t = (image * 17 + type) * 4;
+            float u0 = tex[t], v0 = tex[t + 1], u1 = tex[t + 2], v1 = tex[t + 3];
+            // top-left, top-right, bottom-right, top-left, bottom-right, bottom-left
+            float xtl = x - c - s, ytl = y - s + c;
+            float xbr = x + c + s, ybr = y + s - c;
+            buf.put(xtl).put(ytl).put(u0).put(v0);
+            buf.put(x + c - s).put(y + s + c).put(u1).put(v0);
+            buf.put(xbr).put(ybr).put(u1).put(v1);
+            buf.put(xtl).put(ytl).put(u0).put(v0);
+            buf.put(xbr).put(ybr).put(u1).put(v1);
+            buf.put(x - c + s).put(y - s - c).put(u0).put(v1);
+        }
+        buf.flip();
+        mVertexElements = mCount;
     }
 
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import android.view.Choreographer;
+
+/**
+ * Carries the game events from the simulation to the UI. Events of each type are only
+ * counted when they are posted, and the listener is called once at the next vsync with
+ * the counts since the last call, so the UI is updated at most once per frame however
+ * many events come.
+ * <p>
+ * Events can be posted from any thread without allocating. The bus must be created on
+ * the main thread, where the listener is called.
+ */
+public class GameEventBus implements Choreographer.FrameCallback {
+
+    public static final int EVENT_HIT = 0;
+    public static final int EVENT_BOMB = 1;
+    public static final int EVENT_BOMB_GRANT = 2;
+    public static final int EVENT_MAX = 3;
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the number of events of each type.
+         * The array is reused for the next call.
+         */
+        void onEvents(int[] counts);
+    }
+
+    private final Listener      mListener;
+    private final Choreographer mChoreographer;
+    private final AtomicIntegerArray mPending = new AtomicIntegerArray(EVENT_MAX);
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final int[]         mCounts = new int[EVENT_MAX];
+
+    /*-----------------------------------------------------------------------*/
+
+    public GameEventBus(Listener listener) {
+        mListener = listener;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    public void post(int type) {
+        post(type, 1);
+    }
+
+    public void post(int type, int count) {
+        mPending.addAndGet(type, count);
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Returns the number of the events of the type which haven't been delivered yet.
+     */
+    public int getPending(int type) {
+        return mPending.get(type);
+    }
+
+    /**
+     * Delivers the pending events at once. This must be called on the main thread.
+     */
+    public void flush() {
+        mChoreographer.removeFrameCallback(this);
+        doFrame(0);
+    }
+
+    /**
+     * Drops the pending events and stops the callback.
+     */
+    public void cancel() {
+        mChoreographer.removeFrameCallback(this);
+        mScheduled.set(false);
+        for (int type = 0; type < EVENT_MAX; type++) {
+            mPending.set(type, 0);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled.set(false);
+        boolean any = false;
+        for (int type = 0; type < EVENT_MAX; type++) {
+            mCounts[type] = mPending.getAndSet(type, 0);
+            any |= (mCounts[type] != 0);
+        }
+        if (any) {
+            mListener.onEvents(mCounts);
+        }
+    }
+
+}
@@ -16,8 +16,8 @@
 
 package com.obnsoft.mamo;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import android.app.Activity;
@@ -38,12 +38,13 @@ public class HistoryActivity extends Activity implements OnItemClickListener {
     private GridView        mGridView;
     private LayoutParams    mLayoutParams;
     private ArrayList<Item> mItemList = new ArrayList<Item>();
+    private HashMap<Long, Bitmap> mThumbnails = new HashMap<Long, Bitmap>();
 
     /*-----------------------------------------------------------------------*/
 
     class Item {
         public boolean  mIsCurrent = false;
-        public String   mFname;
+        public int      mSlot;
         public Bitmap   mBitmap;
     }
 
@@ -73,12 +74,14 @@ public class HistoryActivity extends Activity implements OnItemClickListener {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        boolean isCurrent;
-        isCurrent = !addItemFunc(TargetUtils.getTargetFileName(), true);
-        for (int i = 0; i < 10; i++) {
-            addItemFunc(TargetUtils.getHistoryFileName(i), false);
+        HistoryArchive archive = HistoryArchive.getInstance(this);
+        boolean isCurrent = !archive.has(HistoryArchive.SLOT_TARGET);
+        for (int slot = 0; slot < HistoryArchive.SLOTS; slot++) {
+            if (archive.has(slot)) {
+                addItemFunc(slot, slot == HistoryArchive.SLOT_TARGET);
+            }
         }
-        addItemFunc(null, isCurrent);
+        addItemFunc(-1, isCurrent);
 
         int size = TargetUtils.getScreenSize(this) / 3;
         mLayoutParams = new LayoutParams(size, size);
@@ -93,8 +96,14 @@ public class HistoryActivity extends Activity implements OnItemClickListener {
 
     @Override
     protected void onDestroy() {
+        BitmapPool pool = BitmapPool.getInstance(this);
         for (Item item : mItemList) {
-            item.mBitmap.recycle();
+            if (item.mSlot < 0) {
+                pool.put(item.mBitmap);
+            }
+        }
+        for (Bitmap bmp : mThumbnails.values()) {
+            pool.put(bmp);
         }
         super.onDestroy();
     }
@@ -107,15 +116,7 @@ public class HistoryActivity extends Activity implements OnItemClickListener {
         if (item.mIsCurrent) {
             setResult(RESULT_CANCELED);
         } else {
-            File tmpFile = getFileStreamPath("tmp.img");
-            if (item.mFname != null) {
-                getFileStreamPath(item.mFname).renameTo(tmpFile);
-            }
-            String fname = TargetUtils.getTargetFileName();
-            TargetUtils.pileHistoryFile(this, fname);
-            if (item.mFname != null) {
-                tmpFile.renameTo(getFileStreamPath(fname));
-            }
+            HistoryArchive.getInstance(this).select(item.mSlot);
             setResult(RESULT_OK);
         }
         finish();
@@ -123,18 +124,21 @@ public class HistoryActivity extends Activity implements OnItemClickListener {
 
     /*-----------------------------------------------------------------------*/
 
-    private boolean addItemFunc(String fname, boolean isCurrent) {
-        if (fname != null) {
-            if (!getFileStreamPath(fname).exists()) {
-                return false;
-            }
-        }
+    private void addItemFunc(int slot, boolean isCurrent) {
         Item item = new Item();
         item.mIsCurrent = isCurrent;
-        item.mFname = fname;
-        item.mBitmap = TargetUtils.loadTargetBitmap(this, fname);
+        item.mSlot = slot;
+        if (slot >= 0) {
+            Long hash = HistoryArchive.getInstance(this).getHash(slot);
+            item.mBitmap = mThumbnails.get(hash);
+            if (item.mBitmap == null) {
+                item.mBitmap = TargetUtils.loadThumbnailBitmap(this, slot);
+                mThumbnails.put(hash, item.mBitmap);
+            }
+        } else {
+            item.mBitmap = TargetUtils.loadThumbnailBitmap(this, slot);
+        }
         mItemList.add(item);
-        return true;
     }
 
 }
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.content.Context;
+
+/**
+ * Stores the target and the history images in one append-only file.
+ * <p>
+ * The file starts with a fixed header, which is memory-mapped and holds a table of
+ * slots. Slot 0 is the current target and the slots from 1 are the history, newest
+ * first. Each slot refers to the encoded image and its thumbnail in the data area by
+ * offset and size, with the content hash of the image. Images are only appended;
+ * the space of evicted images is reclaimed by rewriting the file once it grows
+ * beyond the threshold.
+ * <p>
+ * The header holds two copies of the table, each with a generation and a checksum.
+ * The table is edited in memory and written over the older copy, so a crash while
+ * writing leaves the newer one intact, and the images it refers to are already synced.
+ * <p>
+ * An image which is identical to one already in the archive isn't appended again;
+ * the slots share the stored image and its thumbnail.
+ */
+public class HistoryArchive {
+
+    public static final int SLOT_TARGET = 0;
+    public static final int HISTORY_MAX = 10;
+    public static final int SLOTS = HISTORY_MAX + 1;
+
+    private static final String FNAME_ARCHIVE = "history.pak";
+    private static final String FNAME_TEMP = "history.tmp";
+    private static final String FNAME_TARGET = "target.img";
+    private static final int    MAGIC = 0x4D484131; // "MHA1"
+    private static final int    SLOT_BYTES = 32;
+    private static final int    TABLE_SIZE = SLOTS * SLOT_BYTES;
+    private static final int    COPY_SIZE = 8 + TABLE_SIZE + 8;  // magic, generation, checksum
+    private static final int    HEADER_SIZE = COPY_SIZE * 2;
+    private static final long   COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private static final int    OFS_OFFSET = 0;
+    private static final int    OFS_SIZE = 8;
+    private static final int    OFS_THUMB_SIZE = 12;
+    private static final int    OFS_THUMB_OFFSET = 16;
+    private static final int    OFS_HASH = 24;
+
+    private static HistoryArchive sInstance;
+
+    private final File      mDir;
+    private RandomAccessFile mFile;
+    private FileChannel     mChannel;
+    private MappedByteBuffer mHeader;
+    private MappedByteBuffer mData;
+    private final ByteBuffer mTable = ByteBuffer.allocate(TABLE_SIZE);
+    private int             mGeneration;
+    private long            mLength;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static synchronized HistoryArchive getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HistoryArchive(context.getFilesDir());
+            sInstance.importLooseFiles(context);
+        }
+        return sInstance;
+    }
+
+    public HistoryArchive(File dir) {
+        mDir = dir;
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized boolean has(int slot) {
+        return mHeader != null && mTable.getInt(slotPos(slot) + OFS_SIZE) > 0;
+    }
+
+    /**
+     * Returns the content hash of the image in the slot.
+     */
+    public synchronized long getHash(int slot) {
+        return mTable.getLong(slotPos(slot) + OFS_HASH);
+    }
+
+    /**
+     * Returns the encoded image in the slot, or null if it's empty.
+     */
+    public synchronized byte[] readImage(int slot) {
+        if (!has(slot)) {
+            return null;
+        }
+        int pos = slotPos(slot);
+        return read(mTable.getLong(pos + OFS_OFFSET), mTable.getInt(pos + OFS_SIZE));
+    }
+
+    /**
+     * Returns the encoded thumbnail in the slot, or null if it's empty.
+     */
+    public synchronized byte[] readThumbnail(int slot) {
+        if (!has(slot)) {
+            return null;
+        }
+        int pos = slotPos(slot);
+        return read(mTable.getLong(pos + OFS_THUMB_OFFSET),
+                mTable.getInt(pos + OFS_THUMB_SIZE));
+    }
+
+    /**
+     * Makes a new image the target, and moves the current target into the history.
+     * If the same image is already stored, it's shared instead of being appended.
+     * @param thumb the encoded thumbnail, or null to use the image itself
+     * @throws IOException if the image couldn't be stored; the slots are left unchanged
+     */
+    public synchronized void push(byte[] image, byte[] thumb) throws IOException {
+        if (mHeader == null) {
+            throw new IOException("The archive isn't open.");
+        }
+        long hash = hash(image);
+        byte[] entry = new byte[SLOT_BYTES];
+        int same = findImage(hash, image);
+        if (same >= 0) {
+            getSlot(same, entry);
+            pile();
+            setSlot(SLOT_TARGET, entry);
+            commit();
+            return;
+        }
+        long length = mLength;
+        try {
+            long offset = append(image);
+            long thumbOffset = offset;
+            int thumbSize = image.length;
+            if (thumb != null) {
+                thumbOffset = append(thumb);
+                thumbSize = thumb.length;
+            }
+            mChannel.force(false);
+            pile();
+            int pos = slotPos(SLOT_TARGET);
+            mTable.putLong(pos + OFS_OFFSET, offset);
+            mTable.putInt(pos + OFS_SIZE, image.length);
+            mTable.putInt(pos + OFS_THUMB_SIZE, thumbSize);
+            mTable.putLong(pos + OFS_THUMB_OFFSET, thumbOffset);
+            mTable.putLong(pos + OFS_HASH, hash);
+        } catch (IOException e) {
+            mLength = length;
+            throw e;
+        }
+        commit();
+    }
+
+    /**
+     * Returns the slot which holds the identical image, or -1.
+     */
+    public synchronized int findImage(long hash, byte[] image) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (has(slot) && getHash(slot) == hash &&
+                    mTable.getInt(slotPos(slot) + OFS_SIZE) == image.length &&
+                    Arrays.equals(readImage(slot), image)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes the image in the slot the target. The current target moves into the history,
+     * and the gap left by the selected slot absorbs the shift.
+     * @param slot the slot to select, or -1 to select the default image
+     */
+    public synchronized void select(int slot) {
+        if (mHeader == null || slot == SLOT_TARGET) {
+            return;
+        }
+        byte[] entry = new byte[SLOT_BYTES];
+        if (slot > 0) {
+            getSlot(slot, entry);
+            clearSlot(slot);
+        }
+        pile();
+        setSlot(SLOT_TARGET, entry);
+        try {
+            commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the bytes.
+     */
+    public static long hash(byte[] bytes) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Opens the archive with the newer valid copy of the table. An archive without a valid
+     * copy is cleared.
+     */
+    private void open() throws IOException {
+        File file = new File(mDir, FNAME_ARCHIVE);
+        long size = file.exists() ? file.length() : 0;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mLength = size;
+        mData = null;
+        boolean exists = size >= HEADER_SIZE;
+        mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int copy = -1;
+        for (int i = 0; exists && i < 2; i++) {
+            int pos = i * COPY_SIZE;
+            if (isValidCopy(pos) && (copy < 0 ||
+                    mHeader.getInt(pos + 4) - mHeader.getInt(copy * COPY_SIZE + 4) > 0)) {
+                copy = i;
+            }
+        }
+        if (copy >= 0) {
+            mGeneration = mHeader.getInt(copy * COPY_SIZE + 4);
+            loadTable(copy * COPY_SIZE + 8);
+        } else {
+            for (int i = 0; i < HEADER_SIZE; i++) {
+                mHeader.put(i, (byte) 0);
+            }
+            mHeader.force();
+            mChannel.truncate(HEADER_SIZE);
+            mLength = HEADER_SIZE;
+            mGeneration = 0;
+            Arrays.fill(mTable.array(), (byte) 0);
+        }
+    }
+
+    private boolean isValidCopy(int pos) {
+        if (mHeader.getInt(pos) != MAGIC) {
+            return false;
+        }
+        byte[] table = new byte[TABLE_SIZE];
+        ByteBuffer buf = mHeader.duplicate();
+        buf.position(pos + 8);
+        buf.get(table);
+        return mHeader.getLong(pos + 8 + TABLE_SIZE) ==
+                checksum(mHeader.getInt(pos + 4), table);
+    }
+
+    private void loadTable(int pos) {
+        ByteBuffer buf = mHeader.duplicate();
+        buf.position(pos);
+        buf.get(mTable.array());
+    }
+
+    /**
+     * Writes the table with the generation over the copy of the older generation.
+     */
+    private void writeTable(ByteBuffer header, int generation, byte[] table) {
+        int pos = (generation & 1) * COPY_SIZE;
+        header.putInt(pos, MAGIC);
+        header.putInt(pos + 4, generation);
+        ByteBuffer buf = header.duplicate();
+        buf.position(pos + 8);
+        buf.put(table);
+        header.putLong(pos + 8 + TABLE_SIZE, checksum(generation, table));
+    }
+
+    private static long checksum(int generation, byte[] table) {
+        return hash(table) * 31L + generation;
+    }
+
+    private void close() throws IOException {
+        mHeader = null;
+        mData = null;
+        mChannel = null;
+        mFile.close();
+        mFile = null;
+    }
+
+    /**
+     * Moves the loose files of the former versions into the archive.
+     */
+    private void importLooseFiles(Context context) {
+        if (mHeader == null) {
+            return;
+        }
+        boolean imported = false;
+        for (int slot = SLOTS - 1; slot >= 0; slot--) {
+            String fname = (slot == SLOT_TARGET) ? FNAME_TARGET : (slot - 1) + ".img";
+            File file = context.getFileStreamPath(fname);
+            if (!file.exists()) {
+                if (slot == SLOT_TARGET && imported) {
+                    select(-1);
+                }
+                continue;
+            }
+            byte[] image = readFile(file);
+            if (image != null && image.length > 0) {
+                try {
+                    push(image, null);
+                    imported = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;   // keep the file to import it next time
+                }
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Shifts the target and the history toward the older end, up to the first gap.
+     * The oldest image is evicted if there is no gap.
+     */
+    private void pile() {
+        if (!has(SLOT_TARGET)) {
+            return;
+        }
+        int gap = 1;
+        while (gap < SLOTS - 1 && has(gap)) {
+            gap++;
+        }
+        byte[] entry = new byte[SLOT_BYTES];
+        for (int slot = gap; slot > 0; slot--) {
+            getSlot(slot - 1, entry);
+            setSlot(slot, entry);
+        }
+        clearSlot(SLOT_TARGET);
+    }
+
+    /**
+     * Makes the table in memory durable, and compacts the archive if it's mostly dead.
+     * If the table can't be written, it's reloaded from the file.
+     */
+    private void commit() throws IOException {
+        int generation = mGeneration + 1;
+        try {
+            writeTable(mHeader, generation, mTable.array());
+            mHeader.force();
+        } catch (RuntimeException e) {
+            loadTable((mGeneration & 1) * COPY_SIZE + 8);
+            throw new IOException("Failed to write the table.", e);
+        }
+        mGeneration = generation;
+        long live = HEADER_SIZE;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (has(slot) && findSharedSlot(slot) < 0) {
+                int pos = slotPos(slot);
+                live += mTable.getInt(pos + OFS_SIZE);
+                if (mTable.getLong(pos + OFS_THUMB_OFFSET) != mTable.getLong(pos + OFS_OFFSET)) {
+                    live += mTable.getInt(pos + OFS_THUMB_SIZE);
+                }
+            }
+        }
+        long dead = mLength - live;
+        if (dead > COMPACT_MIN_BYTES && dead > live) {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the archive with only the images which are referred by the slots, and
+     * swaps it in by renaming. The current archive is kept if the swap fails.
+     */
+    private void compact() throws IOException {
+        File temp = new File(mDir, FNAME_TEMP);
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            ByteBuffer table = ByteBuffer.allocate(TABLE_SIZE);
+            long pos = HEADER_SIZE;
+            out.seek(pos);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (!has(slot)) {
+                    continue;
+                }
+                int src = slotPos(slot);
+                int shared = findSharedSlot(slot);
+                if (shared >= 0) {
+                    int dst = slotPos(shared);
+                    for (int i = 0; i < SLOT_BYTES; i++) {
+                        table.put(src + i, table.get(dst + i));
+                    }
+                    continue;
+                }
+                long offset = mTable.getLong(src + OFS_OFFSET);
+                long thumbOffset = mTable.getLong(src + OFS_THUMB_OFFSET);
+                int size = mTable.getInt(src + OFS_SIZE);
+                int thumbSize = mTable.getInt(src + OFS_THUMB_SIZE);
+                byte[] image = read(offset, size);
+                byte[] thumb = (thumbOffset == offset) ? null : read(thumbOffset, thumbSize);
+                if (image == null || (thumbOffset != offset && thumb == null)) {
+                    throw new IOException("Failed to read the slot " + slot + ".");
+                }
+                table.putLong(src + OFS_OFFSET, pos);
+                table.putInt(src + OFS_SIZE, size);
+                table.putLong(src + OFS_HASH, mTable.getLong(src + OFS_HASH));
+                out.write(image);
+                pos += size;
+                if (thumb == null) {
+                    table.putLong(src + OFS_THUMB_OFFSET, pos - size);
+                } else {
+                    table.putLong(src + OFS_THUMB_OFFSET, pos);
+                    out.write(thumb);
+                    pos += thumbSize;
+                }
+                table.putInt(src + OFS_THUMB_SIZE, thumbSize);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            writeTable(header, 1, table.array());
+            out.seek(0);
+            out.write(header.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+        out.close();
+        close();
+        boolean renamed = temp.renameTo(new File(mDir, FNAME_ARCHIVE));
+        if (!renamed) {
+            temp.delete();
+        }
+        open();
+        if (!renamed) {
+            throw new IOException("Failed to replace the archive.");
+        }
+    }
+
+    private long append(byte[] bytes) throws IOException {
+        long offset = mLength;
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            mChannel.write(buf, offset + buf.position());
+        }
+        mLength += bytes.length;
+        return offset;
+    }
+
+    private byte[] read(long offset, int size) {
+        try {
+            if (mData == null || mData.capacity() < offset + size) {
+                mData = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+            }
+            byte[] bytes = new byte[size];
+            ByteBuffer buf = mData.duplicate();
+            buf.position((int) offset);
+            buf.get(bytes);
+            return bytes;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void getSlot(int slot, byte[] entry) {
+        ByteBuffer buf = mTable.duplicate();
+        buf.position(slotPos(slot));
+        buf.get(entry);
+    }
+
+    private void setSlot(int slot, byte[] entry) {
+        ByteBuffer buf = mTable.duplicate();
+        buf.position(slotPos(slot));
+        buf.put(entry);
+    }
+
+    private void clearSlot(int slot) {
+        setSlot(slot, new byte[SLOT_BYTES]);
+    }
+
+    /**
+     * Returns the earlier slot which shares the stored image with the slot, or -1.
+     */
+    private int findSharedSlot(int slot) {
+        long offset = mTable.getLong(slotPos(slot) + OFS_OFFSET);
+        for (int i = 0; i < slot; i++) {
+            if (has(i) && mTable.getLong(slotPos(i) + OFS_OFFSET) == offset) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int slotPos(int slot) {
+        return slot * SLOT_BYTES;
+    }
+
+    private static byte[] readFile(File file) {
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int pos = 0;
+                while (pos < bytes.length) {
+                    int len = in.read(bytes, pos, bytes.length - pos);
+                    if (len < 0) {
+                        break;
+                    }
+                    pos += len;
+                }
+            } finally {
+                in.close();
+            }
+            return bytes;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Builds the quads of the score and the bomb count from the glyphs in the last cell of
+ * {@link TextureAtlas}, in the same vertex format as the elements, so that they are drawn
+ * in the same call without any view on top of the GL surface.
+ * <p>
+ * The values are set from the main thread and the vertices are written on the GL thread
+ * into a buffer which is allocated once.
+ */
+public class HudLayer {
+
+    public static final int GLYPH_BOMB = 10;
+    public static final int GLYPH_HIT = 11;
+    public static final int MAX_DIGITS = 10;
+    public static final int MAX_ELEMENTS = (MAX_DIGITS + 1) * 2;
+    public static final int MAX_BYTES = MAX_ELEMENTS * ElementsManager.FLOATS_PER_ELEMENT * 4;
+
+    private static final float GLYPH_DP = 32f;
+    private static final float ADVANCE = 0.6f;      // of the glyph size, for the digits
+    private static final float MARGIN_DP = 4f;
+    private static final float BOMB_TOP_DP = 64f;   // below the bomb button
+
+    private final FloatBuffer   mBuffer;
+    private final int[]     mDigits = new int[MAX_DIGITS];
+    private volatile boolean mVisible;
+    private volatile int    mCount;
+    private volatile int    mBomb;
+    private float   mRangeX;
+    private float   mRangeY;
+    private float   mUnitsPerDp;
+    private int     mElements;
+
+    /*-----------------------------------------------------------------------*/
+
+    public HudLayer() {
+        ByteBuffer bb = ByteBuffer.allocateDirect(MAX_BYTES);
+        bb.order(ByteOrder.nativeOrder());
+        mBuffer = bb.asFloatBuffer();
+    }
+
+    public void setVisible(boolean visible) {
+        mVisible = visible;
+    }
+
+    public boolean isVisible() {
+        return mVisible;
+    }
+
+    public void setCount(int count) {
+        mCount = count;
+    }
+
+    public void setBomb(int bomb) {
+        mBomb = bomb;
+    }
+
+    /**
+     * Sets the half size of the field and the size of a dp in the field coordinates.
+     * This must be called on the GL thread.
+     */
+    public void setLayout(float rangeX, float rangeY, float unitsPerDp) {
+        mRangeX = rangeX;
+        mRangeY = rangeY;
+        mUnitsPerDp = unitsPerDp;
+    }
+
+    /**
+     * Writes the vertices of the score at the top left corner and the bomb count at the
+     * right edge, shifted by the camera so that they stay on the screen.
+     * This must be called on the GL thread.
+     * @return the number of vertices, which is 0 while the HUD is hidden
+     */
+    public int writeVertices(float[] texCoords, float cameraX) {
+        mBuffer.clear();
+        mElements = 0;
+        if (mVisible && mUnitsPerDp > 0f) {
+            float size = GLYPH_DP * mUnitsPerDp;
+            float margin = MARGIN_DP * mUnitsPerDp;
+            float top = mRangeY - margin;
+            float x = cameraX - mRangeX + margin;
+            x = putGlyph(texCoords, GLYPH_HIT, x, top, size, 1f);
+            putNumber(texCoords, mCount, x, top, size);
+
+            int bomb = mBomb;
+            float width = size + getDigitCount(bomb) * size * ADVANCE;
+            top = mRangeY - BOMB_TOP_DP * mUnitsPerDp;
+            x = cameraX + mRangeX - margin - width;
+            x = putGlyph(texCoords, GLYPH_BOMB, x, top, size, 1f);
+            putNumber(texCoords, bomb, x, top, size);
+        }
+        mBuffer.flip();
+        return mElements * ElementsManager.VERTICES_PER_ELEMENT;
+    }
+
+    public FloatBuffer getVertexBuffer() {
+        return mBuffer;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void putNumber(float[] texCoords, int value, float x, float top, float size) {
+        value = Math.max(value, 0);
+        int n = getDigitCount(value);
+        for (int i = n - 1; i >= 0; i--) {
+            mDigits[i] = value % 10;
+            value /= 10;
+        }
+        for (int i = 0; i < n; i++) {
+            x = putGlyph(texCoords, mDigits[i], x, top, size, ADVANCE);
+        }
+    }
+
+    /**
+     * Puts a quad of the glyph, centered in the advance which starts at x.
+     * @return the start of the next advance
+     */
+    private float putGlyph(float[] texCoords, int glyph, float x, float top, float size,
+            float advance) {
+        int t = (TextureAtlas.GLYPH_CELL * TextureAtlas.ENTRIES_PER_CELL + 1 + glyph) * 4;
+        float u0 = texCoords[t], v0 = texCoords[t + 1];
+        float u1 = texCoords[t + 2], v1 = texCoords[t + 3];
+        float x0 = x - size * (1f - advance) / 2f, x1 = x0 + size;
+        float y0 = top, y1 = top - size;
+        // top-left, top-right, bottom-right, top-left, bottom-right, bottom-left
+        FloatBuffer buf = mBuffer;
+        buf.put(x0).put(y0).put(u0).put(v0);
+        buf.put(x1).put(y0).put(u1).put(v0);
+        buf.put(x1).put(y1).put(u1).put(v1);
+        buf.put(x0).put(y0).put(u0).put(v0);
+        buf.put(x1).put(y1).put(u1).put(v1);
+        buf.put(x0).put(y1).put(u0).put(v1);
+        mElements++;
+        return x + size * advance;
+    }
+
+    private static int getDigitCount(int value) {
+        int n = 1;
+        while (value >= 10 && n < MAX_DIGITS) {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+
+}
@@ -17,10 +17,19 @@
 package com.obnsoft.mamo;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.android.gms.ads.AdListener;
 import com.google.android.gms.ads.AdRequest;
@@ -28,9 +37,11 @@ import com.google.android.gms.ads.AdView;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -39,18 +50,20 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.media.AudioManager;
-import android.media.SoundPool;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.Surface;
+import android.view.SurfaceHolder;
 import android.view.View;
 import android.view.View.OnTouchListener;
+import android.view.ViewConfiguration;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ImageButton;
@@ -67,14 +80,46 @@ public class MainActivity extends Activity implements SensorEventListener {
     private static final String PREF_KEY_BOMB = "bomb";
     private static final String PREF_KEY_SOUND = "sound";
     private static final String PREF_KEY_LAST = "last_launch";
+    private static final String PREF_KEY_MIX = "mix_history";
+    private static final String PREF_KEY_COLLISIONS = "collisions";
+    private static final String PREF_KEY_LARGE_WORLD = "large_world";
+    private static final String PREF_KEY_GL_HUD = "gl_hud";
     private static final String INTENT_EXTRA_SIMPLE = "simple_mode";
+    private static final String FNAME_SNAPSHOT = "simulation.snap";
+    private static final String FNAME_TRACE = "trace.json";
+    private static final String STARTUP_CRITICAL = "critical";
+    private static final String STARTUP_FIRST_FRAME = "first_frame";
+    private static final String STARTUP_SOUND = "sound";
+    private static final String STARTUP_ARCHIVE = "archive";
+    private static final String STARTUP_SENSOR = "sensor";
+    private static final String STARTUP_AD = "ad";
+    private static final int STARTUP_THREADS = 2;
+    private static final long STARTUP_KEEP_ALIVE = 5000; // msec
+    private static final int SOUND_FRAMES = 256;
+    private static final long TAP_DELAY = 60;   // msec, well within the position history
+    private static final int[] SOUND_RES = {
+        R.raw.bomb, R.raw.crash1, R.raw.crash2, R.raw.crash3, R.raw.crash4,
+    };
 
     private static ElementsManager  sManager = new ElementsManager();
+    private static StatsStore       sStats;
+    private static ExecutorService  sPauseExecutor;
+    private static ThreadPoolExecutor sStartupExecutor;
+    private static boolean          sSnapshotChecked;
 
     private SharedPreferences   mPrefs;
     private GLSurfaceView       mGLView;
     private RelativeLayout      mGroupUI;
     private MyRenderer          mRenderer;
+    private RenderScheduler     mScheduler;
+    private ResolutionScaler    mScaler;
+    private Handler             mHandler = new Handler();
+    private Runnable            mTapRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingTap();
+        }
+    };
     private TextView            mCountTextView;
     private ImageButton         mBombButton;
     private TextView            mBombTextView;
@@ -83,8 +128,10 @@ public class MainActivity extends Activity implements SensorEventListener {
     private TextView            mAdTextView;
     private SensorManager       mSensorMan;
     private Sensor              mSensor;
-    private SoundPool           mSoundPool;
-    private int[]               mSoundId = new int[5];
+    private ShakeDetector       mShakeDetector = new ShakeDetector();
+    private AudioMixer          mMixer;
+    private GameEventBus        mEvents;
+    private StartupGraph        mStartup;
 
     private boolean             mSimpleMode;
     private int                 mCount;
@@ -92,12 +139,33 @@ public class MainActivity extends Activity implements SensorEventListener {
     private boolean             mSound;
     private long                mLaunchTime;
     private boolean             mAdLoaded;
+    private boolean             mResumed;
+    private int                 mTouchedIds;
+    private float[]             mTouchX = new float[16];
+    private float[]             mTouchY = new float[16];
+    private long[]              mTouchTime = new long[16];
+    private int                 mTouchNum;
+    private int                 mPanId = -1;
+    private float               mPanX;
+    private float               mPanDownX;
+    private boolean             mPanning;
+    private boolean             mTapPending;
+    private float               mTouchSlop;
 
     /*-----------------------------------------------------------------------*/
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Tracer.setEnabled((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+        startStartupGraph();
+        mEvents = new GameEventBus(new GameEventBus.Listener() {
+            @Override
+            public void onEvents(int[] counts) {
+                applyEvents(counts);
+            }
+        });
+        sManager.setEventBus(mEvents);
 
         Intent intent = getIntent();
         mSimpleMode = false;
@@ -123,54 +191,160 @@ public class MainActivity extends Activity implements SensorEventListener {
         }
         setContentView(R.layout.main);
 
+        if (sStats == null) {
+            sStats = new StatsStore(getFilesDir());
+            if (sStats.isEmpty()) {
+                importPreferences();
+            }
+        }
+        mCount = sStats.getInt(StatsStore.KEY_COUNT, 0);
+        mBomb = sStats.getInt(StatsStore.KEY_BOMB, 10);
+        mSound = sStats.getBoolean(StatsStore.KEY_SOUND, false);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-        mCount = mPrefs.getInt(PREF_KEY_COUNT, 0);
-        mBomb = mPrefs.getInt(PREF_KEY_BOMB, 10);
-        mSound = mPrefs.getBoolean(PREF_KEY_SOUND, false);
+        sManager.setMixImages(mPrefs.getBoolean(PREF_KEY_MIX, false));
+        sManager.setCollisions(mPrefs.getBoolean(PREF_KEY_COLLISIONS, false));
+        setLargeWorld(mPrefs.getBoolean(PREF_KEY_LARGE_WORLD, false));
 
         Calendar cal = Calendar.getInstance();
         mLaunchTime = cal.getTimeInMillis();
         cal.set(Calendar.HOUR_OF_DAY, 0);
         cal.set(Calendar.MINUTE, 0);
         cal.set(Calendar.SECOND, 0);
-        long lastLaunch = mPrefs.getLong(PREF_KEY_LAST, 0);
+        long lastLaunch = sStats.getLong(StatsStore.KEY_LAST, 0);
         if (lastLaunch > 0 && lastLaunch < cal.getTimeInMillis()) {
             obtainBombs(3);
         }
+        sStats.putLong(StatsStore.KEY_LAST, mLaunchTime);
 
         int day = cal.get(Calendar.DAY_OF_YEAR);
         sManager.setInterval((day == 16) ? 8 : Math.abs(day % 21 - 10) + 50);
         sManager.setTricks((day % 67 == 33), (day % 31 == 11), (day % 37 == 22));
 
         mGLView = (GLSurfaceView) findViewById(R.id.glview);
+        mTouchSlop = ViewConfiguration.get(this).getScaledTouchSlop();
         mGroupUI = (RelativeLayout) findViewById(R.id.group_ui);
         mRenderer = new MyRenderer(this, sManager);
         mGLView.setRenderer(mRenderer);
+        final Runnable wakeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.wake();
+            }
+        };
+        mScheduler = new RenderScheduler(new RenderScheduler.Target() {
+            @Override
+            public void setContinuous(boolean continuous) {
+                mGLView.setRenderMode(continuous ? GLSurfaceView.RENDERMODE_CONTINUOUSLY :
+                        GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+            }
+            @Override
+            public void scheduleWake(long delay) {
+                mHandler.postDelayed(wakeRunnable, delay);
+            }
+            @Override
+            public void cancelWake() {
+                mHandler.removeCallbacks(wakeRunnable);
+            }
+        }, new RenderScheduler.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+        });
+        mRenderer.setScheduler(mScheduler);
+        final Runnable scaleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                applySurfaceScale();
+            }
+        };
+        mScaler = new ResolutionScaler(new ResolutionScaler.Target() {
+            @Override
+            public void setScale(float scale) {
+                mHandler.post(scaleRunnable);
+            }
+        });
+        mRenderer.setResolutionScaler(mScaler);
+        mGLView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                    int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                if (right - left != oldRight - oldLeft || bottom - top != oldBottom - oldTop) {
+                    mScaler.setShortSide(Math.min(right - left, bottom - top));
+                    applySurfaceScale();
+                }
+            }
+        });
+        mRenderer.setFirstFrameCallback(new Runnable() {
+            @Override
+            public void run() {
+                mStartup.complete(STARTUP_FIRST_FRAME);
+            }
+        });
         mGLView.setOnTouchListener(new OnTouchListener() {
             @Override
             public boolean onTouch(View view, MotionEvent event) {
                 switch (event.getActionMasked()) {
                 case MotionEvent.ACTION_DOWN:
+                    mTouchedIds = 0;
+                    mScheduler.wake();
+                    collectNewTouches(view, event);
+                    if (sManager.getWorldScreens() > 1) {
+                        // a tap or the start of a pan, which is judged when it turns out
+                        mPanId = event.getPointerId(0);
+                        mPanX = mPanDownX = event.getX();
+                        mPanning = false;
+                        mTapPending = true;
+                        mHandler.postDelayed(mTapRunnable, TAP_DELAY);
+                    } else {
+                        judgeNewTouches();
+                    }
+                    break;
                 case MotionEvent.ACTION_POINTER_DOWN:
-                    float w = view.getWidth();
-                    float h = view.getHeight();
-                    float s = Math.min(w, h);
-                    int p = event.getActionIndex();
-                    float x = (event.getX(p) - w / 2) / s;
-                    float y = (h / 2 - event.getY(p)) / s;
-                    int count = sManager.judgeTarget(x, y);
-                    if (count > 0) {
-                        mCount += count;
-                        updateCount();
-                        if (mSound) {
-                            mSoundPool.play(mSoundId[(int) (Math.random() * 4.0) + 1], 1f, 1f,
-                                    1, 0, (float) (Math.random() * 0.75 + 0.75));
+                    mScheduler.wake();
+                    flushPendingTap();
+                    collectNewTouches(view, event);
+                    judgeNewTouches();
+                    break;
+                case MotionEvent.ACTION_MOVE:
+                    int p = (mPanId >= 0) ? event.findPointerIndex(mPanId) : -1;
+                    if (p >= 0) {
+                        float x = event.getX(p);
+                        if (!mPanning && Math.abs(x - mPanDownX) > mTouchSlop) {
+                            mPanning = true;
+                            cancelPendingTap();
+                            mPanX = x;
                         }
+                        if (mPanning) {
+                            float s = Math.min(view.getWidth(), view.getHeight());
+                            sManager.setCameraX(sManager.getCameraX() - (x - mPanX) / s);
+                            mPanX = x;
+                            mScheduler.wake();
+                        }
+                    }
+                    break;
+                case MotionEvent.ACTION_POINTER_UP:
+                    int index = event.getActionIndex();
+                    int id = event.getPointerId(index);
+                    mTouchedIds &= ~(1 << (id & 31));
+                    if (id == mPanId) {
+                        // hand the pan over to another pointer without a jump
+                        int other = (index == 0) ? 1 : 0;
+                        mPanId = event.getPointerId(other);
+                        mPanX = mPanDownX = event.getX(other);
                     }
                     break;
                 case MotionEvent.ACTION_UP:
+                    flushPendingTap();
+                    mTouchedIds = 0;
+                    mPanId = -1;
                     view.performClick();
                     break;
+                case MotionEvent.ACTION_CANCEL:
+                    cancelPendingTap();
+                    mTouchedIds = 0;
+                    mPanId = -1;
+                    break;
                 }
                 return true;
             }
@@ -180,22 +354,9 @@ public class MainActivity extends Activity implements SensorEventListener {
         mBombTextView = (TextView) findViewById(R.id.text_bomb);
         mSoundIconView = (ImageView) findViewById(R.id.img_sound);
         mAdView = (AdView) findViewById(R.id.ad);
-        mAdView.setAdListener(new AdListener() {
-            @Override
-            public void onAdLoaded() {
-                super.onAdLoaded();
-                mAdLoaded = true;
-            }
-            @Override
-            public void onAdOpened() {
-                super.onAdOpened();
-                obtainBombs((int) (Math.sqrt(Math.random()) * 11.0) + 5);
-                updateBomb();
-                updateAdRequest();
-            }
-        });
         mAdTextView = (TextView) findViewById(R.id.text_ad);
 
+        setGLHud(mPrefs.getBoolean(PREF_KEY_GL_HUD, false));
         updateCount();
         updateBomb();
         updateSoundIcon();
@@ -203,42 +364,49 @@ public class MainActivity extends Activity implements SensorEventListener {
             mGroupUI.setVisibility(View.INVISIBLE);
         }
 
-        mSensorMan = (SensorManager) getSystemService(SENSOR_SERVICE);
-        if ((mSensorMan.getSensors() & SensorManager.SENSOR_ACCELEROMETER) != 0) {
-            mSensor = mSensorMan.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        }
-
-        mSoundPool = new SoundPool(5, AudioManager.STREAM_MUSIC, 0);
-        mSoundId[0] = mSoundPool.load(this, R.raw.bomb, 1);
-        mSoundId[1] = mSoundPool.load(this, R.raw.crash1, 1);
-        mSoundId[2] = mSoundPool.load(this, R.raw.crash2, 1);
-        mSoundId[3] = mSoundPool.load(this, R.raw.crash3, 1);
-        mSoundId[4] = mSoundPool.load(this, R.raw.crash4, 1);
+        mMixer = new AudioMixer(SOUND_RES.length);
+        mStartup.complete(STARTUP_CRITICAL);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        mGLView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
-        mSensorMan.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_GAME);
-        if (!mSimpleMode && !mAdLoaded) {
+        mResumed = true;
+        restoreSnapshot();
+        mScheduler.reset();
+        mScaler.reset();
+        mShakeDetector.reset();
+        registerSensor();
+        updateMixer();
+        if (!mSimpleMode && !mAdLoaded && mStartup.isDone(STARTUP_AD)) {
             updateAdRequest();
         }
     }
 
     @Override
     protected void onPause() {
-        mGLView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
-        mSensorMan.unregisterListener(this);
-        SharedPreferences.Editor editor = mPrefs.edit();
-        editor.putInt(PREF_KEY_COUNT, mCount);
-        editor.putInt(PREF_KEY_BOMB, mBomb);
-        editor.putBoolean(PREF_KEY_SOUND, mSound);
-        editor.putLong(PREF_KEY_LAST, mLaunchTime);
-        editor.commit();
+        mResumed = false;
+        mScheduler.stop();
+        if (mSensorMan != null) {
+            mSensorMan.unregisterListener(this);
+        }
+        mMixer.stop();
+        mEvents.flush();
+        sStats.flush();
+        saveSnapshot();
+        writeTrace();
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        mEvents.cancel();
+        if (sManager.getEventBus() == mEvents) {
+            sManager.setEventBus(null);
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         if (!mSimpleMode) {
@@ -248,6 +416,27 @@ public class MainActivity extends Activity implements SensorEventListener {
         return false;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        MenuItem item = menu.findItem(R.id.menu_mix_history);
+        if (item != null) {
+            item.setChecked(mPrefs.getBoolean(PREF_KEY_MIX, false));
+        }
+        item = menu.findItem(R.id.menu_collisions);
+        if (item != null) {
+            item.setChecked(mPrefs.getBoolean(PREF_KEY_COLLISIONS, false));
+        }
+        item = menu.findItem(R.id.menu_large_world);
+        if (item != null) {
+            item.setChecked(mPrefs.getBoolean(PREF_KEY_LARGE_WORLD, false));
+        }
+        item = menu.findItem(R.id.menu_gl_hud);
+        if (item != null) {
+            item.setChecked(mPrefs.getBoolean(PREF_KEY_GL_HUD, false));
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -260,6 +449,36 @@ public class MainActivity extends Activity implements SensorEventListener {
         case R.id.menu_history:
             startActivityForResult(new Intent(this, HistoryActivity.class), REQUEST_CAPTURE);
             return true;
+        case R.id.menu_mix_history:
+            boolean mix = !item.isChecked();
+            item.setChecked(mix);
+            sManager.setMixImages(mix);
+            mPrefs.edit().putBoolean(PREF_KEY_MIX, mix).apply();
+            return true;
+        case R.id.menu_collisions:
+            boolean collisions = !item.isChecked();
+            item.setChecked(collisions);
+            sManager.setCollisions(collisions);
+            mPrefs.edit().putBoolean(PREF_KEY_COLLISIONS, collisions).apply();
+            return true;
+        case R.id.menu_large_world:
+            boolean large = !item.isChecked();
+            item.setChecked(large);
+            setLargeWorld(large);
+            mScheduler.wake();
+            mPrefs.edit().putBoolean(PREF_KEY_LARGE_WORLD, large).apply();
+            return true;
+        case R.id.menu_gl_hud:
+            boolean glHud = !item.isChecked();
+            item.setChecked(glHud);
+            setGLHud(glHud);
+            updateCount();
+            updateBomb();
+            mPrefs.edit().putBoolean(PREF_KEY_GL_HUD, glHud).apply();
+            return true;
+        case R.id.menu_capture_size:
+            showCaptureSize();
+            return true;
         case R.id.menu_simple_mode:
             Intent intent = new Intent(this, MainActivity.class);
             intent.putExtra(INTENT_EXTRA_SIMPLE, true);
@@ -285,15 +504,13 @@ public class MainActivity extends Activity implements SensorEventListener {
     }
 
     public void onClickBomb(View v) {
-        if (mBomb > 0) {
+        if (mBomb - mEvents.getPending(GameEventBus.EVENT_BOMB) > 0) {
             int count = sManager.throwBomb();
             if (count > 0) {
-                mCount += count;
-                updateCount();
-                mBomb--;
-                updateBomb();
+                mScheduler.wake();
+                mEvents.post(GameEventBus.EVENT_BOMB);
                 if (mSound) {
-                    mSoundPool.play(mSoundId[0], 1f, 1f, 1, 0, 1f);
+                    mMixer.trigger(0, 1f);
                 }
             }
         }
@@ -302,6 +519,7 @@ public class MainActivity extends Activity implements SensorEventListener {
     public void onClickSound(View v) {
         mSound = !mSound;
         updateSoundIcon();
+        updateMixer();
     }
 
     /*-----------------------------------------------------------------------*/
@@ -313,23 +531,301 @@ public class MainActivity extends Activity implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        float v0 = event.values[0];
-        float v1 = event.values[1];
-        float v2 = event.values[2];
-        float r = v0 * v0 + v1 * v1 + v2 * v2;
-        if (r > 400f) {
-            sManager.newTarget();
+        float[] values = event.values;
+        if (mShakeDetector.onSample(values[0], values[1], values[2], event.timestamp)) {
+            sManager.requestTarget();
+            mScheduler.wake();
         }
     }
 
     /*-----------------------------------------------------------------------*/
 
+    /**
+     * Sizes the surface by the current scale. The renderer is given the size of the view
+     * so that the field and the touches stay mapped by the view whatever the scale is.
+     */
+    private void applySurfaceScale() {
+        int width = mGLView.getWidth();
+        int height = mGLView.getHeight();
+        if (width == 0 || height == 0) {
+            return;
+        }
+        float scale = mScaler.getScale();
+        SurfaceHolder holder = mGLView.getHolder();
+        if (scale < 1f) {
+            mRenderer.setViewSize(width, height);
+            holder.setFixedSize(Math.round(width * scale), Math.round(height * scale));
+        } else {
+            mRenderer.setViewSize(0, 0);
+            holder.setSizeFromLayout();
+        }
+    }
+
+    private void judgeNewTouches() {
+        int count = sManager.judgeTargets(mTouchX, mTouchY, mTouchTime, mTouchNum);
+        if (count > 0) {
+            if (mSound) {
+                mMixer.trigger((int) (Math.random() * 4.0) + 1,
+                        (float) (Math.random() * 0.75 + 0.75));
+            }
+        }
+    }
+
+    /**
+     * Judges the first touch of a gesture in the large world, which has been held back
+     * until it turned out not to be a pan. This is done when the finger lifts or another
+     * comes down, or {@link #TAP_DELAY} after the touch at the latest, so that the frame
+     * displayed at the touch is still in the position history when it's judged.
+     */
+    private void flushPendingTap() {
+        if (mTapPending) {
+            cancelPendingTap();
+            judgeNewTouches();
+        }
+    }
+
+    private void cancelPendingTap() {
+        mTapPending = false;
+        mHandler.removeCallbacks(mTapRunnable);
+    }
+
+    /**
+     * Collects the pointers which have come down since the last call. Only down events
+     * bring new pointers, and they carry no history, so the current positions are used.
+     */
+    private void collectNewTouches(View view, MotionEvent event) {
+        float w = view.getWidth();
+        float h = view.getHeight();
+        float s = Math.min(w, h);
+        float camera = sManager.getCameraX();
+        mTouchNum = 0;
+        for (int p = 0, c = event.getPointerCount(); p < c; p++) {
+            int bit = 1 << (event.getPointerId(p) & 31);
+            if ((mTouchedIds & bit) != 0) {
+                continue;
+            }
+            mTouchedIds |= bit;
+            if (mTouchX.length <= mTouchNum) {
+                mTouchX = Arrays.copyOf(mTouchX, (mTouchNum + 1) * 2);
+                mTouchY = Arrays.copyOf(mTouchY, mTouchX.length);
+                mTouchTime = Arrays.copyOf(mTouchTime, mTouchX.length);
+            }
+            mTouchX[mTouchNum] = (event.getX(p) - w / 2) / s + camera;
+            mTouchY[mTouchNum] = (h / 2 - event.getY(p)) / s;
+            mTouchTime[mTouchNum++] = event.getEventTime();
+        }
+    }
+
+    /**
+     * Builds the startup tasks. The sounds and the history archive are prepared in the
+     * background at once, while the sensor and the ad wait for the first frame.
+     */
+    private void startStartupGraph() {
+        mStartup = new StartupGraph(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mHandler.post(command);
+            }
+        }, getStartupExecutor());
+        mStartup.addEvent(STARTUP_CRITICAL);
+        mStartup.addEvent(STARTUP_FIRST_FRAME);
+        mStartup.addBackground(STARTUP_SOUND, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < SOUND_RES.length; i++) {
+                    mMixer.setClip(i, PcmCache.load(MainActivity.this, SOUND_RES[i]));
+                }
+            }
+        }, STARTUP_CRITICAL);
+        mStartup.addBackground(STARTUP_ARCHIVE, new Runnable() {
+            @Override
+            public void run() {
+                HistoryArchive.getInstance(MainActivity.this);
+            }
+        });
+        mStartup.addMain(STARTUP_SENSOR, new Runnable() {
+            @Override
+            public void run() {
+                mSensorMan = (SensorManager) getSystemService(SENSOR_SERVICE);
+                if ((mSensorMan.getSensors() & SensorManager.SENSOR_ACCELEROMETER) != 0) {
+                    mSensor = mSensorMan.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+                }
+                registerSensor();
+            }
+        }, STARTUP_FIRST_FRAME);
+        mStartup.addMain(STARTUP_AD, new Runnable() {
+            @Override
+            public void run() {
+                setupAd();
+            }
+        }, STARTUP_FIRST_FRAME);
+        mStartup.start();
+    }
+
+    /**
+     * Returns the executor of the background startup tasks, which is shared by the
+     * activities. Its threads are daemons and end when they have been idle for a while,
+     * so an activity destroyed before its startup has finished leaves nothing behind.
+     */
+    private static synchronized ExecutorService getStartupExecutor() {
+        if (sStartupExecutor == null) {
+            ThreadFactory factory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Startup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            sStartupExecutor = new ThreadPoolExecutor(STARTUP_THREADS, STARTUP_THREADS,
+                    STARTUP_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), factory);
+            sStartupExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sStartupExecutor;
+    }
+
+    private void registerSensor() {
+        if (mResumed && mSensorMan != null && mSensor != null) {
+            mSensorMan.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_GAME);
+        }
+    }
+
+    private void setupAd() {
+        if (mSimpleMode) {
+            return;
+        }
+        mAdView.setAdListener(new AdListener() {
+            @Override
+            public void onAdLoaded() {
+                super.onAdLoaded();
+                mAdLoaded = true;
+            }
+            @Override
+            public void onAdOpened() {
+                super.onAdOpened();
+                obtainBombs((int) (Math.sqrt(Math.random()) * 11.0) + 5);
+                updateAdRequest();
+            }
+        });
+        if (mResumed && !mAdLoaded) {
+            updateAdRequest();
+        }
+    }
+
+    /**
+     * Restores the simulation saved by the previous process, only when the static manager
+     * is fresh.
+     */
+    private void restoreSnapshot() {
+        if (sSnapshotChecked) {
+            return;
+        }
+        sSnapshotChecked = true;
+        sManager.loadSnapshot(new File(getFilesDir(), FNAME_SNAPSHOT));
+    }
+
+    private void saveSnapshot() {
+        if (sPauseExecutor == null) {
+            sPauseExecutor = Executors.newSingleThreadExecutor();
+        }
+        final File file = new File(getFilesDir(), FNAME_SNAPSHOT);
+        sPauseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sManager.saveSnapshot(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the trace recorded so far where adb can pull it, when tracing is enabled,
+     * with the counts of the bitmap pool so far.
+     */
+    private void writeTrace() {
+        if (!Tracer.isEnabled()) {
+            return;
+        }
+        BitmapPool pool = BitmapPool.getInstance(this);
+        Tracer.counter("poolHits", pool.getHitCount());
+        Tracer.counter("poolMisses", pool.getMissCount());
+        Tracer.counter("poolHitPercent", Math.round(pool.getHitRate() * 100f));
+        Tracer.counter("poolBytes", pool.getBytes());
+        File dir = getExternalFilesDir(null);
+        final File file = new File((dir != null) ? dir : getFilesDir(), FNAME_TRACE);
+        sPauseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Tracer.write(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Switches to the world many screens wide, which is scrolled by dragging.
+     */
+    private void setLargeWorld(boolean large) {
+        int screens = large ? ElementsManager.WORLD_SCREENS : 1;
+        if (sManager.getWorldScreens() != screens) {
+            sManager.setWorldScreens(screens);
+        }
+    }
+
+    /**
+     * Applies the events since the last frame to the counts and the views at once.
+     */
+    private void applyEvents(int[] counts) {
+        if (counts[GameEventBus.EVENT_HIT] > 0) {
+            mCount += counts[GameEventBus.EVENT_HIT];
+            updateCount();
+        }
+        int bombs = counts[GameEventBus.EVENT_BOMB_GRANT] - counts[GameEventBus.EVENT_BOMB];
+        if (counts[GameEventBus.EVENT_BOMB_GRANT] > 0 || counts[GameEventBus.EVENT_BOMB] > 0) {
+            mBomb += bombs;
+            updateBomb();
+        }
+    }
+
+    /**
+     * Switches the score and the bomb count between the views and the HUD drawn in GL.
+     * The views are kept invisible rather than gone so that the layout doesn't move.
+     */
+    private void setGLHud(boolean enabled) {
+        mRenderer.getHud().setVisible(enabled);
+        int visibility = enabled ? View.INVISIBLE : View.VISIBLE;
+        mCountTextView.setVisibility(visibility);
+        mBombTextView.setVisibility(visibility);
+        mScheduler.wake();
+    }
+
     private void updateCount() {
-        mCountTextView.setText(String.valueOf(mCount));
+        HudLayer hud = mRenderer.getHud();
+        if (hud.isVisible()) {
+            hud.setCount(mCount);
+            mScheduler.wake();
+        } else {
+            mCountTextView.setText(String.valueOf(mCount));
+        }
+        sStats.putInt(StatsStore.KEY_COUNT, mCount);
     }
 
     private void updateBomb() {
-        mBombTextView.setText(String.valueOf(mBomb));
+        HudLayer hud = mRenderer.getHud();
+        if (hud.isVisible()) {
+            hud.setBomb(mBomb);
+            mScheduler.wake();
+        } else {
+            mBombTextView.setText(String.valueOf(mBomb));
+        }
+        sStats.putInt(StatsStore.KEY_BOMB, mBomb);
         mBombButton.setEnabled((mBomb > 0));
         mAdTextView.setVisibility((mBomb == 0) ? View.VISIBLE : View.GONE);
     }
@@ -337,6 +833,15 @@ public class MainActivity extends Activity implements SensorEventListener {
     private void updateSoundIcon() {
         mSoundIconView.setImageResource(mSound ? android.R.drawable.ic_lock_silent_mode_off :
             android.R.drawable.ic_lock_silent_mode);
+        sStats.putBoolean(StatsStore.KEY_SOUND, mSound);
+    }
+
+    private void updateMixer() {
+        if (mSound) {
+            mMixer.start(new AudioTrackSink(), SOUND_FRAMES);
+        } else {
+            mMixer.stop();
+        }
     }
 
     private void updateAdRequest() {
@@ -348,8 +853,19 @@ public class MainActivity extends Activity implements SensorEventListener {
         mAdView.loadAd(adRequest);
     }
 
+    private void importPreferences() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.contains(PREF_KEY_COUNT)) {
+            sStats.putInt(StatsStore.KEY_COUNT, prefs.getInt(PREF_KEY_COUNT, 0));
+            sStats.putInt(StatsStore.KEY_BOMB, prefs.getInt(PREF_KEY_BOMB, 10));
+            sStats.putBoolean(StatsStore.KEY_SOUND, prefs.getBoolean(PREF_KEY_SOUND, false));
+            sStats.putLong(StatsStore.KEY_LAST, prefs.getLong(PREF_KEY_LAST, 0));
+            sStats.flush();
+        }
+    }
+
     private void obtainBombs(int num) {
-        mBomb += num;
+        mEvents.post(GameEventBus.EVENT_BOMB_GRANT, num);
         Toast.makeText(this, String.format(getString(R.string.msg_obtain_bomb), num),
                 Toast.LENGTH_LONG).show();
     }
@@ -385,4 +901,29 @@ public class MainActivity extends Activity implements SensorEventListener {
                 .show();
     }
 
+    private void showCaptureSize() {
+        final int[] sizes = TargetUtils.CAPTURE_SIZES;
+        String[] labels = new String[sizes.length];
+        int checked = 0;
+        int current = TargetUtils.getCaptureSize(this);
+        for (int i = 0; i < sizes.length; i++) {
+            labels[i] = getString(R.string.capture_size_format, sizes[i]);
+            if (sizes[i] == current) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_capture_size)
+                .setSingleChoiceItems(labels, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mPrefs.edit().putInt(TargetUtils.PREF_KEY_CAPTURE_SIZE, sizes[which])
+                                .apply();
+                        dialog.dismiss();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
 }
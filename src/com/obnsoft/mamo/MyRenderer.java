@@ -16,43 +16,37 @@
 
 package com.obnsoft.mamo;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import javax.microedition.khronos.opengles.GL11;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.opengl.GLSurfaceView.Renderer;
-import android.opengl.GLUtils;
+import android.os.SystemClock;
 
 public class MyRenderer implements Renderer {
 
     private static final int BYTES_PAR_FLOAT = 4;
-    private static final float TARGET_SIZE = ElementsManager.HIT_SIZE / 2f;
-    private static final float PIECE_SIZE = TARGET_SIZE / 4f;
-    private static final float[] VERTICES = {
-        -TARGET_SIZE,   TARGET_SIZE,
-        TARGET_SIZE,    TARGET_SIZE,
-        TARGET_SIZE,    -TARGET_SIZE,
-        -TARGET_SIZE,   -TARGET_SIZE,
-        -PIECE_SIZE,    PIECE_SIZE,
-        PIECE_SIZE,     PIECE_SIZE,
-        PIECE_SIZE,     -PIECE_SIZE,
-        -PIECE_SIZE,    -PIECE_SIZE,
-    };
-    private static final float[] TEXCOORDS = {
-        0f, 0f,     1f, 0f,     1f, 1f,     0f, 1f,
-    };
+    private static final int STRIDE = ElementsManager.FLOATS_PER_VERTEX * BYTES_PAR_FLOAT;
+    private static final int UPLOAD_BYTES_PER_FRAME = 256 * 1024;
 
     private final Context mContext;
     private final ElementsManager mManager;
+    private final HudLayer mHud = new HudLayer();
 
-    private boolean mIsLoadedTexture = false;
+    private TextureAtlas    mAtlas;
+    private RenderScheduler mScheduler;
+    private ResolutionScaler mScaler;
+    private volatile Runnable mFirstFrameCallback;
+    private boolean mIsLoadingTexture;
+    private boolean mIsRequestedTexture;
+    private boolean mHasTexture;
+    private int     mVertexBufferId;
+    private int     mVertexBufferSize;
+    private volatile int mViewWidth;
+    private volatile int mViewHeight;
 
     /*-----------------------------------------------------------------------*/
 
@@ -68,9 +62,26 @@ public class MyRenderer implements Renderer {
         int[] buffers = new int[1];
         gl.glGenTextures(1, buffers, 0);
         gl.glBindTexture(GL10.GL_TEXTURE_2D, buffers[0]);
-        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+        gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER,
+                GL10.GL_LINEAR_MIPMAP_LINEAR);
         gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-        loadTexture();
+        int[] maxSize = new int[1];
+        gl.glGetIntegerv(GL10.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        int cellSize = TextureAtlas.chooseCellSize(mContext, maxSize[0]);
+        mHasTexture = false;
+        synchronized (this) {
+            if (mAtlas != null && mAtlas.getCellSize() == cellSize) {
+                mAtlas.allocate(gl);
+                mAtlas.reupload();
+            } else {
+                if (mAtlas != null) {
+                    mAtlas.release();
+                }
+                mAtlas = new TextureAtlas(cellSize, BitmapPool.getInstance(mContext));
+                mAtlas.allocate(gl);
+                requestTexture();
+            }
+        }
 
         gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
         gl.glEnable(GL10.GL_BLEND);
@@ -88,7 +99,13 @@ public class MyRenderer implements Renderer {
         gl.glViewport(0, 0, width, height);
         gl.glMatrixMode(GL10.GL_PROJECTION);
         gl.glLoadIdentity();
-        float aspect = (float) width / (float) height;
+        int viewWidth = mViewWidth;
+        int viewHeight = mViewHeight;
+        if (viewWidth == 0 || viewHeight == 0) {
+            viewWidth = width;
+            viewHeight = height;
+        }
+        float aspect = (float) viewWidth / (float) viewHeight;
         float rangeX = 0.5f;
         float rangeY = 0.5f;
         if (aspect < 1f) {
@@ -98,95 +115,164 @@ public class MyRenderer implements Renderer {
         }
         gl.glOrthof(-rangeX, rangeX, -rangeY, rangeY, 0.1f, 100f);
         mManager.setFieldRange(rangeX, rangeY);
-
+        float density = mContext.getResources().getDisplayMetrics().density;
+        mHud.setLayout(rangeX, rangeY, density / Math.min(viewWidth, viewHeight));
         gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glLoadIdentity();
-        loadTexture();
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        mManager.forwardElements();
+        Tracer.begin("drawFrame");
+        if (mScaler != null) {
+            mScaler.onFrame(System.nanoTime());
+        }
+        if (mScheduler != null) {
+            int idleFrames = mScheduler.consumeIdleFrames();
+            if (idleFrames > 0) {
+                mManager.skipFrames(idleFrames);
+            }
+        }
+        mManager.forwardElements(SystemClock.uptimeMillis());
         float flash = mManager.getFlashLevel();
         if (flash >= 0f) {
             gl.glClearColor(flash, flash + 0.2f, flash + 0.4f, 1f);
         }
         gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
-        GL11 gl11 = (GL11) gl;
-        ArrayList<Element> ary = mManager.getArrayList();
-        synchronized(ary) {
-            for (Element e : ary) {
-                if (e.type != -1) {
-                    gl.glPushMatrix();
-                    gl.glTranslatef(e.x, e.y, -1f);
-                    gl.glRotatef(e.r, 0, 0, 1);
-                    gl11.glVertexPointer(2, GL10.GL_FLOAT, 0,
-                            (e.type == 0) ? 0 : 8 * BYTES_PAR_FLOAT);
-                    gl11.glTexCoordPointer(2, GL10.GL_FLOAT, 0,
-                            (e.type * 8 + 16) * BYTES_PAR_FLOAT);
-                    gl.glDrawArrays(GL10.GL_TRIANGLE_FAN, 0, 4);
-                    gl.glPopMatrix();
-                }
+        gl.glLoadIdentity();
+        gl.glTranslatef(-mManager.getCameraX(), 0f, -1f);
+        uploadTexture(gl);
+        int count = mManager.getVertexCount();
+        int hudCount = mHasTexture ?
+                mHud.writeVertices(mAtlas.getTexCoords(), mManager.getCameraX()) : 0;
+        if ((count > 0 || hudCount > 0) && mHasTexture) {
+            GL11 gl11 = (GL11) gl;
+            FloatBuffer buf = mManager.getVertexBuffer();
+            int size = (count > 0) ? buf.limit() * BYTES_PAR_FLOAT : 0;
+            if (size + HudLayer.MAX_BYTES > mVertexBufferSize) {
+                int capacity = (buf != null) ? buf.capacity() * BYTES_PAR_FLOAT : 0;
+                mVertexBufferSize = capacity + HudLayer.MAX_BYTES;
+                gl11.glBufferData(GL11.GL_ARRAY_BUFFER, mVertexBufferSize, null,
+                        GL11.GL_DYNAMIC_DRAW);
+            }
+            if (count > 0) {
+                gl11.glBufferSubData(GL11.GL_ARRAY_BUFFER, 0, size, buf);
+            }
+            if (hudCount > 0) {
+                FloatBuffer hud = mHud.getVertexBuffer();
+                gl11.glBufferSubData(GL11.GL_ARRAY_BUFFER, size,
+                        hud.limit() * BYTES_PAR_FLOAT, hud);
             }
+            gl.glDrawArrays(GL10.GL_TRIANGLES, 0, count + hudCount);
+        }
+        if (mScheduler != null) {
+            mScheduler.onFrameRendered(mManager.isAnimating() || mAtlas.isUploading(),
+                    mManager.getFramesToNextSpawn());
+        }
+        Runnable callback = mFirstFrameCallback;
+        if (callback != null) {
+            mFirstFrameCallback = null;
+            callback.run();
         }
+        Tracer.end("drawFrame");
+    }
+
+    /**
+     * Returns the HUD which is drawn over the elements while it is visible.
+     */
+    public HudLayer getHud() {
+        return mHud;
+    }
+
+    public void setScheduler(RenderScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public void setResolutionScaler(ResolutionScaler scaler) {
+        mScaler = scaler;
+    }
+
+    /**
+     * Sets the size of the view while the surface has a fixed size smaller than it, or 0
+     * while the surface follows the layout. The field is mapped by the size of the view,
+     * so that it matches the touch coordinates whatever the size of the surface is.
+     */
+    public void setViewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+    }
+
+    /**
+     * Sets the callback which is called once on the GL thread after the first frame.
+     */
+    public void setFirstFrameCallback(Runnable callback) {
+        mFirstFrameCallback = callback;
     }
 
     public void setToReloadTexture() {
-        mIsLoadedTexture = false;
+        requestTexture();
     }
 
     /*-----------------------------------------------------------------------*/
 
     private void initializeBuffers(GL11 gl11) {
-        FloatBuffer vertexBuf = newFloatBuffer(19 * 4 * 2);
-        vertexBuf.position(0);
-        vertexBuf.put(VERTICES);
-        vertexBuf.put(TEXCOORDS);
-        for (int y1 = 0; y1 < 4; y1++) {
-            int y2 = y1 + 1;
-            for (int x1 = 0; x1 < 4; x1++) {
-                int x2 = x1 + 1;
-                vertexBuf.put(x1 / 4f);
-                vertexBuf.put(y1 / 4f);
-                vertexBuf.put(x2 / 4f);
-                vertexBuf.put(y1 / 4f);
-                vertexBuf.put(x2 / 4f);
-                vertexBuf.put(y2 / 4f);
-                vertexBuf.put(x1 / 4f);
-                vertexBuf.put(y2 / 4f);
-            }
-        }
-
         int[] buffers = new int[1];
         gl11.glGenBuffers(1, buffers, 0);
-        gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, buffers[0]);
-        vertexBuf.position(0);
-        gl11.glBufferData(GL11.GL_ARRAY_BUFFER, vertexBuf.capacity() * BYTES_PAR_FLOAT,
-                vertexBuf, GL11.GL_STATIC_DRAW);
+        mVertexBufferId = buffers[0];
+        mVertexBufferSize = 0;
+        gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, mVertexBufferId);
+        gl11.glVertexPointer(2, GL10.GL_FLOAT, STRIDE, 0);
+        gl11.glTexCoordPointer(2, GL10.GL_FLOAT, STRIDE, 2 * BYTES_PAR_FLOAT);
     }
 
-    private FloatBuffer newFloatBuffer(int size) {
-        ByteBuffer bb = ByteBuffer.allocateDirect(size * BYTES_PAR_FLOAT);
-        bb.order(ByteOrder.nativeOrder());
-        return bb.asFloatBuffer();
+    /**
+     * Decodes the images and builds their mipmaps on a worker thread. The result is
+     * uploaded by the following frames.
+     */
+    private synchronized void requestTexture() {
+        if (mAtlas == null) {
+            return;
+        }
+        mIsRequestedTexture = true;
+        if (!mIsLoadingTexture) {
+            mIsLoadingTexture = true;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    prepareTexture();
+                }
+            }, "TextureAtlas").start();
+        }
+    }
+
+    private void prepareTexture() {
+        while (true) {
+            TextureAtlas atlas;
+            synchronized (this) {
+                if (!mIsRequestedTexture) {
+                    mIsLoadingTexture = false;
+                    return;
+                }
+                mIsRequestedTexture = false;
+                atlas = mAtlas;
+            }
+            Tracer.begin("updateAtlas");
+            atlas.update(mContext);
+            Tracer.end("updateAtlas");
+            RenderScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                scheduler.wake();
+            }
+        }
     }
 
-    /*private FloatBuffer getFloatBufferFromArray(float[] array) {
-        FloatBuffer ret;
-        ByteBuffer bb = ByteBuffer.allocateDirect(array.length * BYTES_PAR_FLOAT);
-        bb.order(ByteOrder.nativeOrder());
-        ret = bb.asFloatBuffer();
-        ret.put(array);
-        ret.position(0);
-        return ret;
-    }*/
-
-    private void loadTexture() {
-        if (!mIsLoadedTexture) {
-            Bitmap bmp = TargetUtils.loadTargetBitmap(mContext, TargetUtils.getTargetFileName());
-            GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bmp, 0);
-            bmp.recycle();
-            mIsLoadedTexture = true;
+    private void uploadTexture(GL10 gl) {
+        Tracer.begin("uploadTexture");
+        boolean published = mAtlas.upload(gl, UPLOAD_BYTES_PER_FRAME);
+        Tracer.end("uploadTexture");
+        if (published) {
+            mManager.setImages(mAtlas.getTexCoords(), mAtlas.getImageCells(),
+                    mAtlas.getImageCount());
+            mHasTexture = true;
         }
     }
 
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Decodes the sound resources into mono PCM only once.
+ * The decoded samples are kept in the cache directory and reused until the
+ * app is updated, as a resource ID may point to another sound in another build.
+ */
+public class PcmCache {
+
+    private static final int CACHE_MAGIC = 0x50434D31; // "PCM1"
+    private static final long TIMEOUT = 10000; // usec
+
+    /*-----------------------------------------------------------------------*/
+
+    public static AudioMixer.Clip load(Context context, int resId) {
+        AssetFileDescriptor afd = context.getResources().openRawResourceFd(resId);
+        long resLength = afd.getLength();
+        long buildTime = getBuildTime(context);
+        File file = new File(context.getCacheDir(), "pcm_" + resId + ".raw");
+        AudioMixer.Clip clip = readCache(file, resLength, buildTime);
+        if (clip == null) {
+            try {
+                clip = decode(afd);
+                writeCache(file, resLength, buildTime, clip);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            afd.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return clip;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the time when the installed APK was last updated, which changes with each
+     * build that is installed.
+     */
+    private static long getBuildTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0).lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private static AudioMixer.Clip decode(AssetFileDescriptor afd) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+        MediaFormat format = extractor.getTrackFormat(0);
+        extractor.selectTrack(0);
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        codec.configure(format, null, null, 0);
+        codec.start();
+
+        ByteBuffer[] inBufs = codec.getInputBuffers();
+        ByteBuffer[] outBufs = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        short[] pcm = new short[sampleRate];
+        int length = 0;
+        boolean inputDone = false;
+        boolean outputDone = false;
+        while (!outputDone) {
+            if (!inputDone) {
+                int inIdx = codec.dequeueInputBuffer(TIMEOUT);
+                if (inIdx >= 0) {
+                    int size = extractor.readSampleData(inBufs[inIdx], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(inIdx, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inIdx, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+            int outIdx = codec.dequeueOutputBuffer(info, TIMEOUT);
+            if (outIdx >= 0) {
+                ByteBuffer bb = outBufs[outIdx].duplicate();
+                bb.clear();
+                ShortBuffer sb = bb.order(ByteOrder.nativeOrder()).asShortBuffer();
+                sb.position(info.offset / 2);
+                sb.limit((info.offset + info.size) / 2);
+                int frames = sb.remaining() / channels;
+                if (length + frames > pcm.length) {
+                    short[] newPcm = new short[Math.max(pcm.length * 2, length + frames)];
+                    System.arraycopy(pcm, 0, newPcm, 0, length);
+                    pcm = newPcm;
+                }
+                for (int i = 0; i < frames; i++) {
+                    int sum = 0;
+                    for (int c = 0; c < channels; c++) {
+                        sum += sb.get();
+                    }
+                    pcm[length++] = (short) (sum / channels);
+                }
+                codec.releaseOutputBuffer(outIdx, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    outputDone = true;
+                }
+            } else if (outIdx == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outBufs = codec.getOutputBuffers();
+            } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                channels = codec.getOutputFormat().getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            }
+        }
+        codec.stop();
+        codec.release();
+        extractor.release();
+
+        short[] samples = new short[length];
+        System.arraycopy(pcm, 0, samples, 0, length);
+        return new AudioMixer.Clip(samples, sampleRate);
+    }
+
+    private static AudioMixer.Clip readCache(File file, long resLength, long buildTime) {
+        if (!file.exists()) {
+            return null;
+        }
+        AudioMixer.Clip clip = null;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == CACHE_MAGIC && in.readLong() == resLength &&
+                        in.readLong() == buildTime) {
+                    int sampleRate = in.readInt();
+                    short[] samples = new short[in.readInt()];
+                    for (int i = 0; i < samples.length; i++) {
+                        samples[i] = in.readShort();
+                    }
+                    clip = new AudioMixer.Clip(samples, sampleRate);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return clip;
+    }
+
+    private static void writeCache(File file, long resLength, long buildTime,
+            AudioMixer.Clip clip) {
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(CACHE_MAGIC);
+                out.writeLong(resLength);
+                out.writeLong(buildTime);
+                out.writeInt(clip.sampleRate);
+                out.writeInt(clip.samples.length);
+                for (short s : clip.samples) {
+                    out.writeShort(s);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+        }
+    }
+
+}
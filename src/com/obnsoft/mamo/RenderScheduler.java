@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+/**
+ * Switches the rendering between continuous and on-demand modes.
+ * While nothing is animating, rendering stops and is resumed by a timer
+ * for the next scheduled spawn, or earlier by {@link #wake()}.
+ */
+public class RenderScheduler {
+
+    public static final int FRAMES_PER_SECOND = 60;
+
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    public interface Target {
+        void setContinuous(boolean continuous);
+        void scheduleWake(long delay);
+        void cancelWake();
+    }
+
+    private final Target    mTarget;
+    private final Clock     mClock;
+
+    private boolean mStopped;
+    private boolean mIdle;
+    private boolean mWakePending;
+    private long    mIdleSince;
+    private int     mIdleFrames;
+
+    /*-----------------------------------------------------------------------*/
+
+    public RenderScheduler(Target target, Clock clock) {
+        mTarget = target;
+        mClock = clock;
+    }
+
+    public synchronized void reset() {
+        mTarget.cancelWake();
+        mStopped = false;
+        mIdle = false;
+        mWakePending = false;
+        mIdleFrames = 0;
+        mTarget.setContinuous(true);
+    }
+
+    public synchronized void stop() {
+        mTarget.cancelWake();
+        mStopped = true;
+        mTarget.setContinuous(false);
+    }
+
+    /**
+     * Called after each frame is rendered.
+     * @param framesToSpawn the number of frames until the next scheduled spawn
+     */
+    public synchronized void onFrameRendered(boolean animating, int framesToSpawn) {
+        if (mStopped) {
+            return;
+        }
+        if (animating || mWakePending) {
+            mWakePending = false;
+            return;
+        }
+        if (!mIdle) {
+            mIdle = true;
+            mIdleSince = mClock.uptimeMillis();
+            mTarget.setContinuous(false);
+            mTarget.scheduleWake(framesToMillis(framesToSpawn - 1));
+        }
+    }
+
+    /**
+     * Resumes continuous rendering. This can be called from any thread.
+     */
+    public synchronized void wake() {
+        if (mStopped) {
+            return;
+        }
+        if (mIdle) {
+            mIdle = false;
+            mIdleFrames += millisToFrames(mClock.uptimeMillis() - mIdleSince);
+            mTarget.cancelWake();
+            mTarget.setContinuous(true);
+        } else {
+            mWakePending = true;
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return mIdle;
+    }
+
+    /**
+     * Returns the number of frames which were skipped while idle, and clears it.
+     */
+    public synchronized int consumeIdleFrames() {
+        int ret = mIdleFrames;
+        mIdleFrames = 0;
+        return ret;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static long framesToMillis(int frames) {
+        return Math.max(frames, 0) * 1000L / FRAMES_PER_SECOND;
+    }
+
+    private static int millisToFrames(long millis) {
+        return (int) (millis * FRAMES_PER_SECOND / 1000L);
+    }
+
+}
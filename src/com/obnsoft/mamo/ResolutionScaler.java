@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+/**
+ * Chooses the scale of the GL surface from the measured interval between frames.
+ * The scale steps down as soon as a window of frames misses the budget, and steps up
+ * only after several windows in a row have met it. Each step up which is followed by
+ * a step down right away doubles the windows needed for the next one, so that the
+ * scale doesn't go back and forth at a load on the border. The windows needed are
+ * halved again, down to the initial number, by a step up which holds for that many
+ * windows or by as many good windows in a row at full scale, and {@link #reset()}
+ * restores them, so that a load which has gone away doesn't slow the scale up forever.
+ * <p>
+ * The surface isn't scaled below {@link #MIN_SHORT_SIDE} pixels on its short side,
+ * so screens which are small enough are always rendered at full resolution.
+ */
+public class ResolutionScaler {
+
+    public static final int MIN_SHORT_SIDE = 720;
+
+    public interface Target {
+        /**
+         * Called on the thread calling {@link ResolutionScaler#onFrame(long)} or
+         * {@link ResolutionScaler#setShortSide(int)} when the scale has been changed.
+         */
+        void setScale(float scale);
+    }
+
+    private static final float[] SCALES = { 1f, 0.85f, 0.7f, 0.6f, 0.5f };
+    private static final long BUDGET_NANOS = 1000000000L / RenderScheduler.FRAMES_PER_SECOND;
+    private static final float DOWN_RATIO = 1.25f;      // of the budget, to step down
+    private static final float UP_RATIO = 1.05f;        // of the budget, to count toward up
+    private static final long GAP_NANOS = 100000000L;   // longer intervals are pauses
+    private static final int WINDOW_FRAMES = 30;
+    private static final int UP_WINDOWS = 6;
+    private static final int MAX_UP_WINDOWS = 120;
+
+    private final Target    mTarget;
+
+    private int     mLevel;
+    private int     mMaxLevel;
+    private long    mLastFrame;
+    private long    mSum;
+    private int     mFrames;
+    private int     mSettleFrames;
+    private int     mGoodWindows;
+    private int     mUpWindows = UP_WINDOWS;
+    private int     mWindowsSinceUp = Integer.MAX_VALUE;
+
+    /*-----------------------------------------------------------------------*/
+
+    public ResolutionScaler(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * Sets the short side of the view in pixels, which limits the smallest scale.
+     */
+    public synchronized void setShortSide(int pixels) {
+        int maxLevel = 0;
+        while (maxLevel + 1 < SCALES.length &&
+                SCALES[maxLevel + 1] * pixels >= MIN_SHORT_SIDE) {
+            maxLevel++;
+        }
+        mMaxLevel = maxLevel;
+        if (mLevel > maxLevel) {
+            changeLevel(maxLevel);
+        }
+    }
+
+    public synchronized float getScale() {
+        return SCALES[mLevel];
+    }
+
+    /**
+     * Forgets the frames so far, e.g. after rendering has been paused. The scale is kept.
+     */
+    public synchronized void reset() {
+        mLastFrame = 0;
+        clearWindow();
+        mGoodWindows = 0;
+        mUpWindows = UP_WINDOWS;
+        mWindowsSinceUp = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Called at the start of each frame with {@link System#nanoTime()}.
+     */
+    public synchronized void onFrame(long nanos) {
+        long interval = nanos - mLastFrame;
+        boolean continued = (mLastFrame != 0 && interval < GAP_NANOS);
+        mLastFrame = nanos;
+        if (!continued) {
+            clearWindow();
+            return;
+        }
+        if (mSettleFrames > 0) {
+            mSettleFrames--;
+            return;
+        }
+        mSum += interval;
+        if (++mFrames < WINDOW_FRAMES) {
+            return;
+        }
+
+        long limit = BUDGET_NANOS * mFrames;
+        if (mSum > limit * DOWN_RATIO) {
+            mGoodWindows = 0;
+            if (mLevel < mMaxLevel) {
+                if (mWindowsSinceUp <= 1) {
+                    mUpWindows = Math.min(mUpWindows * 2, MAX_UP_WINDOWS);
+                }
+                mWindowsSinceUp = Integer.MAX_VALUE;
+                changeLevel(mLevel + 1);
+            }
+        } else if (mSum <= limit * UP_RATIO) {
+            if (++mGoodWindows >= mUpWindows) {
+                mGoodWindows = 0;
+                if (mLevel > 0) {
+                    mWindowsSinceUp = 0;
+                    changeLevel(mLevel - 1);
+                } else {
+                    relaxUpWindows();
+                }
+            }
+        } else {
+            mGoodWindows = 0;
+        }
+        if (mWindowsSinceUp < Integer.MAX_VALUE && ++mWindowsSinceUp == UP_WINDOWS) {
+            relaxUpWindows();
+        }
+        clearWindow();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Changes the level and skips a window, as resizing the surface costs a frame or two.
+     */
+    private void changeLevel(int level) {
+        mLevel = level;
+        mSettleFrames = WINDOW_FRAMES;
+        mTarget.setScale(SCALES[level]);
+    }
+
+    private void relaxUpWindows() {
+        mUpWindows = Math.max(mUpWindows / 2, UP_WINDOWS);
+    }
+
+    private void clearWindow() {
+        mSum = 0;
+        mFrames = 0;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+/**
+ * Detects shakes from raw accelerometer samples.
+ * Gravity is removed by a high-pass filter, and a shake is reported once when
+ * the linear acceleration rises above the trigger level. Another shake isn't
+ * reported until it falls below the release level and the refractory period
+ * has passed.
+ */
+public class ShakeDetector {
+
+    private static final float  GRAVITY_ALPHA = 0.9f;
+    private static final float  TRIGGER_LEVEL = 11f;            // m/s^2
+    private static final float  RELEASE_LEVEL = 5f;             // m/s^2
+    private static final long   REFRACTORY_PERIOD = 250000000L; // nsec
+    private static final int    SETTLE_SAMPLES = 8;
+
+    private final float[]   mGravity = new float[3];
+    private int     mSamples;
+    private boolean mArmed = true;
+    private long    mLastShakeTime;
+
+    /*-----------------------------------------------------------------------*/
+
+    public void reset() {
+        mSamples = 0;
+        mArmed = true;
+        mLastShakeTime = 0;
+    }
+
+    /**
+     * Feeds one sample and returns true if it completes the detection of a shake.
+     * @param timestamp the sample time in nanoseconds
+     */
+    public boolean onSample(float x, float y, float z, long timestamp) {
+        if (mSamples == 0) {
+            mGravity[0] = x;
+            mGravity[1] = y;
+            mGravity[2] = z;
+        } else {
+            mGravity[0] = GRAVITY_ALPHA * mGravity[0] + (1f - GRAVITY_ALPHA) * x;
+            mGravity[1] = GRAVITY_ALPHA * mGravity[1] + (1f - GRAVITY_ALPHA) * y;
+            mGravity[2] = GRAVITY_ALPHA * mGravity[2] + (1f - GRAVITY_ALPHA) * z;
+        }
+        if (mSamples < SETTLE_SAMPLES) {
+            mSamples++;
+            return false;
+        }
+        float lx = x - mGravity[0];
+        float ly = y - mGravity[1];
+        float lz = z - mGravity[2];
+        float level = lx * lx + ly * ly + lz * lz;
+        if (mArmed) {
+            if (level > TRIGGER_LEVEL * TRIGGER_LEVEL &&
+                    (mLastShakeTime == 0 || timestamp - mLastShakeTime >= REFRACTORY_PERIOD)) {
+                mArmed = false;
+                mLastShakeTime = timestamp;
+                return true;
+            }
+        } else if (level < RELEASE_LEVEL * RELEASE_LEVEL) {
+            mArmed = true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scores the sharpness of a square in an NV21 frame by the variance of the Laplacian
+ * of its luminance. The Y plane comes first in NV21, so no conversion is needed.
+ * The square is split into bands of rows. The first band is scored on the calling thread
+ * and the others on a pool, by tasks which are made once and handed over by a counter,
+ * so that scoring a preview frame allocates nothing but the queue entries of the pool.
+ */
+public class SharpnessMeter {
+
+    private final int           mBands;
+    private final long[]        mSums;
+    private final long[]        mSquares;
+    private final Runnable[]    mTasks;
+    private final ExecutorService mExecutor;
+    private final Object        mDoneLock = new Object();
+
+    private int     mPending;           // guarded by mDoneLock
+    private byte[]  mData;
+    private int     mWidth;
+    private int     mLeft;
+    private int     mTop;
+    private int     mSize;
+
+    /*-----------------------------------------------------------------------*/
+
+    public SharpnessMeter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SharpnessMeter(int threads) {
+        mBands = Math.max(threads, 1);
+        mSums = new long[mBands];
+        mSquares = new long[mBands];
+        mTasks = new Runnable[mBands];
+        for (int i = 1; i < mBands; i++) {
+            final int band = i;
+            mTasks[i] = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scoreBand(band);
+                    } finally {
+                        synchronized (mDoneLock) {
+                            if (--mPending == 0) {
+                                mDoneLock.notifyAll();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        mExecutor = (mBands > 1) ? Executors.newFixedThreadPool(mBands - 1) : null;
+    }
+
+    /**
+     * Returns the variance of the Laplacian in the square. The pixels on the border of
+     * the square are used only as neighbors.
+     * @param data the NV21 frame
+     * @param width the width of the frame
+     */
+    public synchronized double score(byte[] data, int width, int left, int top, int size) {
+        if (size < 3) {
+            return 0.0;
+        }
+        mData = data;
+        mWidth = width;
+        mLeft = left;
+        mTop = top;
+        mSize = size;
+        if (mExecutor != null) {
+            synchronized (mDoneLock) {
+                mPending = mBands - 1;
+            }
+            for (int i = 1; i < mBands; i++) {
+                mExecutor.execute(mTasks[i]);
+            }
+        }
+        scoreBand(0);
+        if (mExecutor != null) {
+            awaitBands();
+        }
+        mData = null;
+        long sum = 0, squares = 0;
+        for (int i = 0; i < mBands; i++) {
+            sum += mSums[i];
+            squares += mSquares[i];
+        }
+        double n = (double) (size - 2) * (size - 2);
+        double mean = sum / n;
+        return squares / n - mean * mean;
+    }
+
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Waits for the bands on the pool, which are still using the frame and the sums.
+     * An interrupt is kept for the caller rather than leaving them running.
+     */
+    private void awaitBands() {
+        boolean interrupted = false;
+        synchronized (mDoneLock) {
+            while (mPending > 0) {
+                try {
+                    mDoneLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scoreBand(int band) {
+        byte[] data = mData;
+        int width = mWidth;
+        int inner = mSize - 2;
+        int y0 = mTop + 1 + inner * band / mBands;
+        int y1 = mTop + 1 + inner * (band + 1) / mBands;
+        int x0 = mLeft + 1;
+        int x1 = mLeft + mSize - 1;
+        long sum = 0, squares = 0;
+        for (int y = y0; y < y1; y++) {
+            int pos = y * width + x0;
+            int end = y * width + x1;
+            for (; pos < end; pos++) {
+                int lap = 4 * (data[pos] & 0xFF) - (data[pos - 1] & 0xFF) -
+                        (data[pos + 1] & 0xFF) - (data[pos - width] & 0xFF) -
+                        (data[pos + width] & 0xFF);
+                sum += lap;
+                squares += lap * lap;
+            }
+        }
+        mSums[band] = sum;
+        mSquares[band] = squares;
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the startup tasks in the order of their dependencies. Each task runs either on
+ * the main thread or on a background executor as soon as all of its dependencies are
+ * done. Events which aren't tasks, such as the first frame, can be depended on as well
+ * and are completed by {@link #complete(String)}.
+ * <p>
+ * The time when each task was started and finished is recorded relative to the creation
+ * of the graph, and reported as a trace when everything is done. Events are traced from
+ * the creation of the graph, so the first frame shows the time to the first frame.
+ */
+public class StartupGraph {
+
+    public interface Listener {
+        void onFinished(String trace);
+    }
+
+    private class Node {
+        final String    mName;
+        final Runnable  mTask;
+        final boolean   mBackground;
+        final String[]  mDeps;
+        boolean mStarted;
+        boolean mDone;
+        long    mStartTime = -1;
+        long    mEndTime = -1;
+
+        Node(String name, Runnable task, boolean background, String[] deps) {
+            mName = name;
+            mTask = task;
+            mBackground = background;
+            mDeps = deps;
+        }
+    }
+
+    private final LinkedHashMap<String, Node> mNodes = new LinkedHashMap<String, Node>();
+    private final Executor  mMainExecutor;
+    private final Executor  mBackgroundExecutor;
+    private final long      mOrigin = System.nanoTime();
+    private Listener        mListener;
+    private boolean         mRunning;
+    private boolean         mFinished;
+
+    /*-----------------------------------------------------------------------*/
+
+    public StartupGraph(Executor mainExecutor, Executor backgroundExecutor) {
+        mMainExecutor = mainExecutor;
+        mBackgroundExecutor = backgroundExecutor;
+    }
+
+    /**
+     * Adds a task to run on the main thread.
+     */
+    public synchronized StartupGraph addMain(String name, Runnable task, String... deps) {
+        mNodes.put(name, new Node(name, task, false, deps));
+        return this;
+    }
+
+    /**
+     * Adds a task to run on the background executor.
+     */
+    public synchronized StartupGraph addBackground(String name, Runnable task,
+            String... deps) {
+        mNodes.put(name, new Node(name, task, true, deps));
+        return this;
+    }
+
+    /**
+     * Adds an event which is completed from outside by {@link #complete(String)}.
+     */
+    public synchronized StartupGraph addEvent(String name) {
+        mNodes.put(name, new Node(name, null, false, new String[0]));
+        return this;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void start() {
+        synchronized (this) {
+            for (Node node : mNodes.values()) {
+                for (String dep : node.mDeps) {
+                    if (!mNodes.containsKey(dep)) {
+                        throw new IllegalArgumentException(node.mName + " depends on " + dep);
+                    }
+                }
+                if (node.mTask == null) {
+                    node.mStarted = true;
+                    node.mStartTime = 0;
+                }
+            }
+            mRunning = true;
+        }
+        dispatch();
+    }
+
+    /**
+     * Marks the task or the event as done, and starts the tasks which were waiting for it.
+     */
+    public void complete(String name) {
+        synchronized (this) {
+            Node node = mNodes.get(name);
+            if (node == null || node.mDone) {
+                return;
+            }
+            node.mEndTime = now();
+            node.mDone = true;
+        }
+        dispatch();
+    }
+
+    public synchronized boolean isDone(String name) {
+        Node node = mNodes.get(name);
+        return node != null && node.mDone;
+    }
+
+    /**
+     * Returns the trace of the tasks in the order of their start times.
+     */
+    public synchronized String getTrace() {
+        ArrayList<Node> nodes = new ArrayList<Node>(mNodes.values());
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node min = null;
+            for (Node node : nodes) {
+                if (node != null && (min == null || node.mStartTime < min.mStartTime)) {
+                    min = node;
+                }
+            }
+            nodes.set(nodes.indexOf(min), null);
+            buf.append(String.format("%-12s %6.1f - %6.1f ms%s\n", min.mName,
+                    min.mStartTime / 1000000.0, min.mEndTime / 1000000.0,
+                    (min.mBackground) ? " (bg)" : ""));
+        }
+        return buf.toString();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void dispatch() {
+        ArrayList<Node> ready = new ArrayList<Node>();
+        Listener listener = null;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            boolean allDone = true;
+            for (Node node : mNodes.values()) {
+                allDone &= node.mDone;
+                if (!node.mStarted && isReady(node)) {
+                    node.mStarted = true;
+                    ready.add(node);
+                }
+            }
+            if (allDone && !mFinished) {
+                mFinished = true;
+                listener = mListener;
+            }
+        }
+        for (final Node node : ready) {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (StartupGraph.this) {
+                        node.mStartTime = now();
+                    }
+                    node.mTask.run();
+                    complete(node.mName);
+                }
+            };
+            if (node.mBackground) {
+                mBackgroundExecutor.execute(runnable);
+            } else {
+                mMainExecutor.execute(runnable);
+            }
+        }
+        if (listener != null) {
+            listener.onFinished(getTrace());
+        }
+    }
+
+    private boolean isReady(Node node) {
+        for (String dep : node.mDeps) {
+            if (!mNodes.get(dep).mDone) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long now() {
+        return System.nanoTime() - mOrigin;
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Small write-behind store for the play statistics.
+ * Updates are kept in memory and appended to a journal by a background thread,
+ * which is folded into a snapshot file when it grows too long.
+ */
+public class StatsStore {
+
+    public static final int KEY_COUNT = 0;
+    public static final int KEY_BOMB = 1;
+    public static final int KEY_SOUND = 2;
+    public static final int KEY_LAST = 3;
+    private static final int KEY_MAX = 4;
+
+    private static final String FNAME_SNAPSHOT = "stats.dat";
+    private static final String FNAME_JOURNAL = "stats.log";
+    private static final String FNAME_TEMP = "stats.tmp";
+
+    private static final int RECORD_MARK = 0x5A;
+    private static final int RECORD_SIZE = 10;
+    private static final long FLUSH_DELAY = 3000;       // msec
+    private static final int FLUSH_THRESHOLD = 64;      // updates
+    private static final int COMPACT_THRESHOLD = 512;   // records
+
+    private final File  mSnapshotFile;
+    private final File  mJournalFile;
+    private final File  mTempFile;
+    private final long[]    mValues = new long[KEY_MAX];
+    private final boolean[] mExists = new boolean[KEY_MAX];
+    private final boolean[] mDirty = new boolean[KEY_MAX];
+    private final byte[]    mRecordBuf = new byte[RECORD_SIZE * KEY_MAX];
+    private final long[]    mWorkValues = new long[KEY_MAX];
+    private final boolean[] mWorkDirty = new boolean[KEY_MAX];
+
+    private int     mUpdates;
+    private long    mFirstUpdateTime;
+    private boolean mFlushRequested;
+    private int     mJournalRecords;
+    private FileOutputStream mJournalOut;
+    private Thread  mFlusher;
+
+    /*-----------------------------------------------------------------------*/
+
+    public StatsStore(File dir) {
+        mSnapshotFile = new File(dir, FNAME_SNAPSHOT);
+        mJournalFile = new File(dir, FNAME_JOURNAL);
+        mTempFile = new File(dir, FNAME_TEMP);
+        readRecords(mSnapshotFile);
+        mJournalRecords = readRecords(mJournalFile);
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flusherLoop();
+            }
+        }, "StatsStore");
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    public synchronized boolean isEmpty() {
+        for (boolean exists : mExists) {
+            if (exists) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(int key) {
+        return mExists[key];
+    }
+
+    public synchronized long getLong(int key, long defValue) {
+        return mExists[key] ? mValues[key] : defValue;
+    }
+
+    public int getInt(int key, int defValue) {
+        return (int) getLong(key, defValue);
+    }
+
+    public boolean getBoolean(int key, boolean defValue) {
+        return getLong(key, defValue ? 1 : 0) != 0;
+    }
+
+    public synchronized void putLong(int key, long value) {
+        if (mExists[key] && mValues[key] == value) {
+            return;
+        }
+        mValues[key] = value;
+        mExists[key] = true;
+        mDirty[key] = true;
+        if (mUpdates++ == 0) {
+            mFirstUpdateTime = System.currentTimeMillis();
+            notifyAll();
+        } else if (mUpdates >= FLUSH_THRESHOLD) {
+            notifyAll();
+        }
+    }
+
+    public void putInt(int key, int value) {
+        putLong(key, value);
+    }
+
+    public void putBoolean(int key, boolean value) {
+        putLong(key, value ? 1 : 0);
+    }
+
+    /**
+     * Requests the pending updates to be written as soon as possible.
+     * This method doesn't wait for the disk I/O.
+     */
+    public synchronized void flush() {
+        if (mUpdates > 0) {
+            mFlushRequested = true;
+            notifyAll();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void flusherLoop() {
+        if (mJournalFile.length() != (long) mJournalRecords * RECORD_SIZE) {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        while (true) {
+            int count = 0;
+            synchronized (this) {
+                try {
+                    while (mUpdates == 0) {
+                        wait();
+                    }
+                    long now;
+                    while (!mFlushRequested && mUpdates < FLUSH_THRESHOLD &&
+                            (now = System.currentTimeMillis()) < mFirstUpdateTime + FLUSH_DELAY) {
+                        wait(mFirstUpdateTime + FLUSH_DELAY - now);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int key = 0; key < KEY_MAX; key++) {
+                    mWorkDirty[key] = mDirty[key];
+                    mWorkValues[key] = mValues[key];
+                    mDirty[key] = false;
+                }
+                mUpdates = 0;
+                mFlushRequested = false;
+            }
+            for (int key = 0; key < KEY_MAX; key++) {
+                if (mWorkDirty[key]) {
+                    putRecord(mRecordBuf, count++ * RECORD_SIZE, key, mWorkValues[key]);
+                }
+            }
+            try {
+                appendJournal(mRecordBuf, count * RECORD_SIZE);
+                mJournalRecords += count;
+                if (mJournalRecords >= COMPACT_THRESHOLD) {
+                    compact();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeJournal();
+            }
+        }
+    }
+
+    private void appendJournal(byte[] buf, int len) throws IOException {
+        if (mJournalOut == null) {
+            mJournalOut = new FileOutputStream(mJournalFile, true);
+        }
+        mJournalOut.write(buf, 0, len);
+        mJournalOut.getFD().sync();
+    }
+
+    private void closeJournal() {
+        if (mJournalOut != null) {
+            try {
+                mJournalOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mJournalOut = null;
+        }
+    }
+
+    private void compact() throws IOException {
+        int count = 0;
+        synchronized (this) {
+            for (int key = 0; key < KEY_MAX; key++) {
+                if (mExists[key]) {
+                    putRecord(mRecordBuf, count++ * RECORD_SIZE, key, mValues[key]);
+                }
+            }
+        }
+        FileOutputStream out = new FileOutputStream(mTempFile);
+        try {
+            out.write(mRecordBuf, 0, count * RECORD_SIZE);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!mTempFile.renameTo(mSnapshotFile)) {
+            throw new IOException("Failed to replace " + mSnapshotFile);
+        }
+        closeJournal();
+        mJournalFile.delete();
+        mJournalRecords = 0;
+    }
+
+    private int readRecords(File file) {
+        int count = 0;
+        if (!file.exists()) {
+            return count;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    int mark = in.readUnsignedByte();
+                    int key = in.readUnsignedByte();
+                    long value = in.readLong();
+                    if (mark != RECORD_MARK || key >= KEY_MAX) {
+                        break;
+                    }
+                    mValues[key] = value;
+                    mExists[key] = true;
+                    count++;
+                }
+            } catch (EOFException e) {
+                // A torn record at the tail is ignored.
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return count;
+    }
+
+    private static void putRecord(byte[] buf, int pos, int key, long value) {
+        buf[pos++] = (byte) RECORD_MARK;
+        buf[pos++] = (byte) key;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (value >>> shift);
+        }
+    }
+
+}
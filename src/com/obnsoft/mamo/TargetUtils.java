@@ -16,87 +16,143 @@
 
 package com.obnsoft.mamo;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.Rect;
+import android.preference.PreferenceManager;
 import android.view.Display;
 import android.view.WindowManager;
 
 public class TargetUtils {
 
-    private static final String FNAME_TARGET = "target.img";
+    public static final String PREF_KEY_CAPTURE_SIZE = "capture_size";
+    public static final int[] CAPTURE_SIZES = { 256, 512, 1024 };
 
-    public static String getTargetFileName() {
-        return FNAME_TARGET;
+    private static final int THUMBNAIL_SIZE = 256;
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    /**
+     * Loads the image in the slot of the history archive, masked to a circle.
+     * @param slot the slot, or -1 for the default image
+     */
+    public static Bitmap loadTargetBitmap(Context context, int slot) {
+        Tracer.begin("loadTargetBitmap");
+        Bitmap bitmap = decodeTarget(context, (slot >= 0) ?
+                HistoryArchive.getInstance(context).readImage(slot) : null);
+        Tracer.end("loadTargetBitmap");
+        return bitmap;
+    }
+
+    /**
+     * Loads the thumbnail in the slot of the history archive, masked to a circle.
+     * @param slot the slot, or -1 for the default image
+     */
+    public static Bitmap loadThumbnailBitmap(Context context, int slot) {
+        Tracer.begin("loadThumbnailBitmap");
+        Bitmap bitmap = decodeTarget(context, (slot >= 0) ?
+                HistoryArchive.getInstance(context).readThumbnail(slot) : null);
+        Tracer.end("loadThumbnailBitmap");
+        return bitmap;
     }
 
-    public static String getHistoryFileName(int num) {
-        return String.valueOf(num).concat(".img");
+    /**
+     * Encodes the bitmap and its thumbnail, and makes it the new target.
+     * @throws IOException if it couldn't be stored; the target is left unchanged
+     */
+    public static void saveTarget(Context context, Bitmap bitmap, CompressFormat format,
+            int quality) throws IOException {
+        Tracer.begin("saveTarget");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format, quality, out);
+        byte[] image = out.toByteArray();
+        byte[] thumb = null;
+        if (bitmap.getWidth() > THUMBNAIL_SIZE) {
+            BitmapPool pool = BitmapPool.getInstance(context);
+            Bitmap scaled = pool.get(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            Canvas canvas = new Canvas(scaled);
+            canvas.drawBitmap(bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+                    new Rect(0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE),
+                    new Paint(Paint.FILTER_BITMAP_FLAG));
+            out.reset();
+            scaled.compress(format, THUMBNAIL_QUALITY, out);
+            pool.put(scaled);
+            thumb = out.toByteArray();
+        }
+        try {
+            HistoryArchive.getInstance(context).push(image, thumb);
+        } finally {
+            Tracer.end("saveTarget");
+        }
     }
 
-    public static Bitmap loadTargetBitmap(Context context, String fname) {
+    public static int getCaptureSize(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(PREF_KEY_CAPTURE_SIZE, CAPTURE_SIZES[0]);
+    }
+
+    public static int getScreenSize(Context context) {
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        Display disp = wm.getDefaultDisplay();
+        Point dispSize = new Point();
+        disp.getSize(dispSize);
+        return Math.min(dispSize.x, dispSize.y);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static Bitmap decodeTarget(Context context, byte[] data) {
         Bitmap bitmap = null;
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inMutable = true;
-        if (fname != null) {
-            try {
-                InputStream in = context.openFileInput(fname);
-                bitmap = BitmapFactory.decodeStream(in, null, options);
-                in.close();
-            } catch (FileNotFoundException e) {
-                //e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (data != null) {
+            bitmap = BitmapPool.getInstance(context).decodeByteArray(data, 0, data.length);
         }
         if (bitmap == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
             bitmap = BitmapFactory.decodeResource(
                     context.getResources(), R.drawable.obono256, options);
         }
+        maskCircle(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Clears the pixels outside the inscribed circle. Only the spans outside the circle
+     * are written, a row at a time from a transparent row.
+     */
+    private static void maskCircle(Bitmap bitmap) {
         bitmap.setHasAlpha(true);
         int w = bitmap.getWidth();
         int h = bitmap.getHeight();
         int cx = w / 2, cy = h / 2, size = Math.min(cx, cy);
+        int[] clear = new int[w];   // Color.TRANSPARENT
         for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                if (Math.hypot(x - cx, y - cy) > size) {
-                    bitmap.setPixel(x, y, Color.TRANSPARENT);
+            long rest = (long) size * size - (long) (y - cy) * (y - cy);
+            int left = w, right = w;    // the spans [0, left) and [right, w) are cleared
+            if (rest >= 0) {
+                int r = (int) Math.sqrt(rest);
+                while ((long) r * r > rest) {
+                    r--;
                 }
-            }
-        }
-        return bitmap;
-    }
-
-    public static void pileHistoryFile(Context context, String fname) {
-        char c = fname.charAt(0);
-        int num = (c >= '0' && c <= '9') ? c - '0' : -1;
-        File srcFile = context.getFileStreamPath(fname);
-        if (srcFile.exists()) {
-            if (num >= 9) {
-                srcFile.delete();
-            } else {
-                String destFname = getHistoryFileName(num + 1);
-                File destFile = context.getFileStreamPath(destFname);
-                if (destFile.exists()) {
-                    pileHistoryFile(context, destFname);
+                while ((long) (r + 1) * (r + 1) <= rest) {
+                    r++;
                 }
-                srcFile.renameTo(destFile);
+                left = Math.max(cx - r, 0);
+                right = Math.min(cx + r + 1, w);
+            }
+            if (left > 0) {
+                bitmap.setPixels(clear, 0, w, 0, y, left, 1);
+            }
+            if (right < w) {
+                bitmap.setPixels(clear, 0, w, right, y, w - right, 1);
             }
         }
     }
-
-    public static int getScreenSize(Context context) {
-        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        Display disp = wm.getDefaultDisplay();
-        Point dispSize = new Point();
-        disp.getSize(dispSize);
-        return Math.min(dispSize.x, dispSize.y);
-    }
 }
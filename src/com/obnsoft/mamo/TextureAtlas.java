@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.opengl.GLUtils;
+import android.util.DisplayMetrics;
+
+/**
+ * Packs the current target and the history images into one mipmapped texture.
+ * Each image occupies a cell of a 4x4 grid. Cells are keyed by the content hash
+ * of the image in the history archive, so shifting the history or storing the same
+ * image in several slots doesn't move or re-decode them.
+ * The last cell holds the glyphs of {@link HudLayer}, laid out like the pieces.
+ * <p>
+ * The cells are decoded on a worker thread by {@link #update(Context)}, and their
+ * mip levels are handed to the GL thread through a fixed ring of cells, each with the
+ * next level to upload, which {@link #upload(GL10, int)} drains within a byte budget
+ * per frame. A cell queued again starts over from level 0 in its place. The decoded
+ * levels are kept as a CPU copy, so the texture can be rebuilt after the EGL context
+ * is lost without decoding again.
+ */
+public class TextureAtlas {
+
+    public static final int GRID = 4;
+    public static final int CELLS = GRID * GRID;
+    public static final int PIECES = 16;
+    public static final int ENTRIES_PER_CELL = PIECES + 1;
+    public static final int GLYPH_CELL = CELLS - 1;
+
+    private static final int IMAGE_CELLS = CELLS - 1;
+    private static final String KEY_DEFAULT = "default";
+    private static final String KEY_GLYPHS = "glyphs";
+    private static final int MIN_CELL_SIZE = 64;
+    private static final int MAX_CELL_SIZE = 1024;
+    private static final int MAX_SAMPLED_LEVEL = 2;
+
+    private final int       mCellSize;
+    private final int       mCellLevels;
+    private final BitmapPool mPool;
+    private final String[]  mCellKeys = new String[CELLS];
+    private final Bitmap[][] mCellBitmaps = new Bitmap[CELLS][];
+    private final int[]     mUploadCells = new int[CELLS];     // ring of the queued cells
+    private final int[]     mUploadLevels = new int[CELLS];    // next level, or -1 if not queued
+    private final int[]     mImageCells = new int[HistoryArchive.SLOTS];
+    private final int[]     mPendingCells = new int[HistoryArchive.SLOTS];
+    private final float[]   mTexCoords = new float[CELLS * ENTRIES_PER_CELL * 4];
+    private int             mUploadHead;
+    private int             mUploadCount;
+    private int             mImageCount;
+    private int             mPendingCount;
+    private boolean         mIsPending;
+
+    /*-----------------------------------------------------------------------*/
+
+    public TextureAtlas(int cellSize, BitmapPool pool) {
+        mCellSize = cellSize;
+        mPool = pool;
+        mCellLevels = log2(cellSize) + 1;
+        Arrays.fill(mUploadLevels, -1);
+        // Half a texel of the coarsest level which is sampled, so that no level blends in
+        // the next cell. A cell is drawn down to half its size, and the surface can be
+        // scaled down by half, so the trilinear filter reaches level 2.
+        int insetLevel = Math.min(MAX_SAMPLED_LEVEL, mCellLevels - 1);
+        float inset = 0.5f * (1 << insetLevel) / (cellSize * GRID);
+        for (int cell = 0; cell < CELLS; cell++) {
+            float u0 = (float) (cell % GRID) / GRID + inset;
+            float v0 = (float) (cell / GRID) / GRID + inset;
+            float span = 1f / GRID - inset * 2f;
+            int pos = cell * ENTRIES_PER_CELL * 4;
+            mTexCoords[pos++] = u0;
+            mTexCoords[pos++] = v0;
+            mTexCoords[pos++] = u0 + span;
+            mTexCoords[pos++] = v0 + span;
+            for (int i = 0; i < PIECES; i++) {
+                int x1 = i % 4, y1 = i / 4;
+                mTexCoords[pos++] = u0 + span * x1 / 4f;
+                mTexCoords[pos++] = v0 + span * y1 / 4f;
+                mTexCoords[pos++] = u0 + span * (x1 + 1) / 4f;
+                mTexCoords[pos++] = v0 + span * (y1 + 1) / 4f;
+            }
+        }
+    }
+
+    /**
+     * Chooses the cell size from the size of targets on the screen, the memory class of
+     * the device and the maximum texture size. The budget covers both the texture and
+     * its CPU copy.
+     */
+    public static int chooseCellSize(Context context, int maxTextureSize) {
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        float targetPixels = Math.min(metrics.widthPixels, metrics.heightPixels) *
+                ElementsManager.HIT_SIZE;
+        int cellSize = MIN_CELL_SIZE;
+        while (cellSize < targetPixels && cellSize < MAX_CELL_SIZE) {
+            cellSize *= 2;
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long budget = am.getMemoryClass() * 1024L * 1024L / 4L;
+        while (cellSize > MIN_CELL_SIZE &&
+                (getTextureBytes(cellSize) * 2L > budget || cellSize * GRID > maxTextureSize)) {
+            cellSize /= 2;
+        }
+        return cellSize;
+    }
+
+    /**
+     * Returns the bytes of the texture including all the mipmap levels.
+     */
+    public static long getTextureBytes(int cellSize) {
+        long size = cellSize * GRID;
+        return size * size * 4L * 4L / 3L;
+    }
+
+    public int getCellSize() {
+        return mCellSize;
+    }
+
+    public int getTextureSize() {
+        return mCellSize * GRID;
+    }
+
+    /**
+     * Allocates all the mipmap levels of the bound texture. This must be called on the GL
+     * thread. The levels smaller than a pixel per cell are cleared to transparent.
+     */
+    public void allocate(GL10 gl) {
+        int size = getTextureSize();
+        for (int level = 0; size > 0; level++, size /= 2) {
+            ByteBuffer pixels = null;
+            if (level >= mCellLevels) {
+                pixels = ByteBuffer.allocateDirect(size * size * 4);
+            }
+            gl.glTexImage2D(GL10.GL_TEXTURE_2D, level, GL10.GL_RGBA, size, size, 0,
+                    GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixels);
+        }
+    }
+
+    /**
+     * Queues all the cached cells again, for a texture which has lost its contents.
+     */
+    public synchronized void reupload() {
+        clearUploads();
+        for (int cell = 0; cell < CELLS; cell++) {
+            if (mCellBitmaps[cell] != null) {
+                queueCell(cell);
+            }
+        }
+        if (!mIsPending) {
+            System.arraycopy(mImageCells, 0, mPendingCells, 0, mImageCount);
+            mPendingCount = mImageCount;
+            mIsPending = true;
+        }
+    }
+
+    /**
+     * Scans the slots of the history archive, and decodes only the images which aren't
+     * in the atlas yet. This is called on a worker thread; the GL thread keeps uploading
+     * while the images are being decoded.
+     * @return true if any cell has been changed
+     */
+    public boolean update(Context context) {
+        HistoryArchive archive = HistoryArchive.getInstance(context);
+        int[] slots = new int[HistoryArchive.SLOTS];
+        String[] keys = new String[HistoryArchive.SLOTS];
+        int count = 0;
+        for (int slot = 0; slot < HistoryArchive.SLOTS; slot++) {
+            if (archive.has(slot)) {
+                keys[count] = Long.toHexString(archive.getHash(slot));
+                slots[count++] = slot;
+            } else if (slot == HistoryArchive.SLOT_TARGET) {
+                keys[count] = KEY_DEFAULT;
+                slots[count++] = -1;
+            }
+        }
+
+        int[] cells = new int[count];
+        int[] newCells = new int[count];
+        int[] newSlots = new int[count];
+        int newCount = 0;
+        boolean drawsGlyphs;
+        synchronized (this) {
+            drawsGlyphs = (mCellKeys[GLYPH_CELL] == null);
+            mCellKeys[GLYPH_CELL] = KEY_GLYPHS;
+            boolean[] used = new boolean[CELLS];
+            for (int i = 0; i < count; i++) {
+                cells[i] = findCell(keys[i]);
+                if (cells[i] >= 0) {
+                    used[cells[i]] = true;
+                }
+            }
+            for (int i = 0; i < mImageCount; i++) {
+                used[mImageCells[i]] = true;
+            }
+            for (int i = 0; i < count; i++) {
+                if (cells[i] < 0) {
+                    cells[i] = findCell(keys[i]);   // identical images share a cell
+                }
+                if (cells[i] < 0) {
+                    int cell = findFreeCell(used, cells, i);
+                    used[cell] = true;
+                    cells[i] = cell;
+                    mCellKeys[cell] = keys[i];
+                    newCells[newCount] = cell;
+                    newSlots[newCount++] = slots[i];
+                }
+            }
+        }
+
+        Bitmap[][] decoded = new Bitmap[newCount][];
+        for (int i = 0; i < newCount; i++) {
+            decoded[i] = decodeCell(context, newSlots[i]);
+        }
+        Bitmap[] glyphs = drawsGlyphs ? buildLevels(drawGlyphs()) : null;
+
+        synchronized (this) {
+            if (glyphs != null) {
+                recycleCell(GLYPH_CELL);
+                mCellBitmaps[GLYPH_CELL] = glyphs;
+                queueCell(GLYPH_CELL);
+            }
+            for (int i = 0; i < newCount; i++) {
+                int cell = newCells[i];
+                recycleCell(cell);
+                mCellBitmaps[cell] = decoded[i];
+                queueCell(cell);
+            }
+            System.arraycopy(cells, 0, mPendingCells, 0, count);
+            mPendingCount = count;
+            mIsPending = true;
+        }
+        return newCount > 0 || glyphs != null;
+    }
+
+    /**
+     * Uploads the queued mip levels until the budget is used up. At least one level is
+     * uploaded per call. This must be called on the GL thread with the atlas texture bound.
+     * @return true if all the queued levels have been uploaded and the images are ready
+     *         to be shown
+     */
+    public synchronized boolean upload(GL10 gl, int budgetBytes) {
+        int bytes = 0;
+        while (mUploadCount > 0 && (bytes == 0 || bytes < budgetBytes)) {
+            int cell = mUploadCells[mUploadHead];
+            int level = mUploadLevels[cell]++;
+            Bitmap[] levels = mCellBitmaps[cell];
+            if (levels == null || level + 1 == mCellLevels) {
+                mUploadLevels[cell] = -1;
+                mUploadHead = (mUploadHead + 1) % CELLS;
+                mUploadCount--;
+            }
+            if (levels == null) {
+                continue;
+            }
+            int size = mCellSize >> level;
+            GLUtils.texSubImage2D(GL10.GL_TEXTURE_2D, level,
+                    (cell % GRID) * size, (cell / GRID) * size, levels[level]);
+            bytes += size * size * 4;
+        }
+        if (mUploadCount == 0 && mIsPending) {
+            System.arraycopy(mPendingCells, 0, mImageCells, 0, mPendingCount);
+            mImageCount = mPendingCount;
+            mIsPending = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the texture coordinates of each cell; the whole image followed by 16 pieces,
+     * as (u0, v0, u1, v1).
+     */
+    public float[] getTexCoords() {
+        return mTexCoords;
+    }
+
+    /**
+     * Returns the cells of the images. The first one is the current target.
+     */
+    public synchronized int[] getImageCells() {
+        return mImageCells.clone();
+    }
+
+    public synchronized int getImageCount() {
+        return mImageCount;
+    }
+
+    /**
+     * Returns true while any level is waiting to be uploaded or the images aren't shown yet.
+     */
+    public synchronized boolean isUploading() {
+        return mIsPending || mUploadCount > 0;
+    }
+
+    /**
+     * Releases the CPU copy of all the cells.
+     */
+    public synchronized void release() {
+        clearUploads();
+        for (int cell = 0; cell < CELLS; cell++) {
+            mCellKeys[cell] = null;
+            recycleCell(cell);
+        }
+        mImageCount = 0;
+        mIsPending = false;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private int findCell(String key) {
+        for (int cell = 0; cell < IMAGE_CELLS; cell++) {
+            if (key.equals(mCellKeys[cell])) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Prefers a cell which has never been used, then a cell which isn't shown now,
+     * so that the images on the screen aren't overwritten while they are uploaded.
+     */
+    private int findFreeCell(boolean[] used, int[] cells, int count) {
+        for (int cell = 0; cell < IMAGE_CELLS; cell++) {
+            if (!used[cell] && mCellKeys[cell] == null) {
+                return cell;
+            }
+        }
+        for (int cell = 0; cell < IMAGE_CELLS; cell++) {
+            if (!used[cell]) {
+                return cell;
+            }
+        }
+        for (int cell = 0; cell < IMAGE_CELLS; cell++) {
+            boolean taken = false;
+            for (int i = 0; i < count; i++) {
+                taken |= (cells[i] == cell);
+            }
+            if (!taken) {
+                return cell;
+            }
+        }
+        return 0;
+    }
+
+    private void queueCell(int cell) {
+        if (mUploadLevels[cell] < 0) {
+            mUploadCells[(mUploadHead + mUploadCount) % CELLS] = cell;
+            mUploadCount++;
+        }
+        mUploadLevels[cell] = 0;
+    }
+
+    private void clearUploads() {
+        mUploadHead = 0;
+        mUploadCount = 0;
+        Arrays.fill(mUploadLevels, -1);
+    }
+
+    private Bitmap[] decodeCell(Context context, int slot) {
+        return buildLevels(TargetUtils.loadTargetBitmap(context, slot));
+    }
+
+    /**
+     * Scales the bitmap into all the mip levels of a cell. The bitmap is given to the pool
+     * if it isn't of the cell size.
+     */
+    private Bitmap[] buildLevels(Bitmap bmp) {
+        Bitmap[] levels = new Bitmap[mCellLevels];
+        Canvas canvas = new Canvas();
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect src = new Rect();
+        Rect dst = new Rect();
+        int size = mCellSize;
+        for (int level = 0; level < mCellLevels; level++, size /= 2) {
+            if (bmp.getWidth() != size || bmp.getHeight() != size) {
+                Bitmap scaled = mPool.get(size, size);
+                src.set(0, 0, bmp.getWidth(), bmp.getHeight());
+                dst.set(0, 0, size, size);
+                canvas.setBitmap(scaled);
+                canvas.drawBitmap(bmp, src, dst, paint);
+                if (level == 0) {
+                    mPool.put(bmp);
+                }
+                bmp = scaled;
+            }
+            levels[level] = bmp;
+        }
+        canvas.setBitmap(null);
+        return levels;
+    }
+
+    /**
+     * Draws the digits and the icons of {@link HudLayer} in white with a black outline,
+     * each in the quarter of the cell where the piece of the same index is.
+     */
+    private Bitmap drawGlyphs() {
+        Bitmap bmp = mPool.get(mCellSize, mCellSize);
+        Canvas canvas = new Canvas(bmp);
+        float size = mCellSize / 4f;
+        Paint fill = new Paint(Paint.ANTI_ALIAS_FLAG);
+        fill.setColor(Color.WHITE);
+        fill.setTextAlign(Paint.Align.CENTER);
+        fill.setTextSize(size * 0.8f);
+        fill.setFakeBoldText(true);
+        Paint outline = new Paint(fill);
+        outline.setColor(Color.BLACK);
+        outline.setStyle(Paint.Style.STROKE);
+        outline.setStrokeWidth(size * 0.08f);
+        float baseline = (size - fill.ascent() - fill.descent()) / 2f;
+        for (int digit = 0; digit <= 9; digit++) {
+            String text = String.valueOf(digit);
+            float x = (digit % 4 + 0.5f) * size;
+            float y = (digit / 4) * size + baseline;
+            canvas.drawText(text, x, y, outline);
+            canvas.drawText(text, x, y, fill);
+        }
+
+        float x = (HudLayer.GLYPH_BOMB % 4 + 0.5f) * size;
+        float y = (HudLayer.GLYPH_BOMB / 4 + 0.55f) * size;
+        canvas.drawLine(x, y, x + size * 0.3f, y - size * 0.35f, outline);
+        canvas.drawCircle(x, y, size * 0.3f, outline);
+        fill.setColor(0xFF880000);
+        canvas.drawCircle(x, y, size * 0.3f, fill);
+        fill.setColor(0xFFFFCC00);
+        canvas.drawCircle(x + size * 0.3f, y - size * 0.35f, size * 0.08f, fill);
+
+        x = (HudLayer.GLYPH_HIT % 4 + 0.5f) * size;
+        y = (HudLayer.GLYPH_HIT / 4 + 0.5f) * size;
+        outline.setStrokeWidth(size * 0.16f);
+        canvas.drawCircle(x, y, size * 0.3f, outline);
+        canvas.drawCircle(x, y, size * 0.1f, outline);
+        fill.setColor(Color.WHITE);
+        fill.setStyle(Paint.Style.STROKE);
+        fill.setStrokeWidth(size * 0.08f);
+        canvas.drawCircle(x, y, size * 0.3f, fill);
+        canvas.drawCircle(x, y, size * 0.1f, fill);
+        canvas.setBitmap(null);
+        return bmp;
+    }
+
+    private void recycleCell(int cell) {
+        Bitmap[] levels = mCellBitmaps[cell];
+        if (levels != null) {
+            for (Bitmap bmp : levels) {
+                mPool.put(bmp);
+            }
+            mCellBitmaps[cell] = null;
+        }
+    }
+
+    private static int log2(int value) {
+        return 31 - Integer.numberOfLeadingZeros(value);
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Records begin/end, counter and instant events into a ring buffer per thread, and
+ * writes them in the Chrome trace event format, which chrome://tracing and Perfetto open.
+ * <p>
+ * Recording allocates nothing once the ring of the thread exists, as long as the names
+ * are constant strings. While disabled, each call costs a volatile read.
+ * <p>
+ * The ring of a thread which has ended is taken over by the next thread of the same name,
+ * so that short-lived workers share one track, or else dropped once it has been written.
+ */
+public class Tracer {
+
+    private static final int RING_SIZE = 16384;   // events per thread
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final byte PHASE_COUNTER = 'C';
+    private static final byte PHASE_INSTANT = 'i';
+
+    private static volatile boolean sEnabled;
+    private static final ArrayList<Ring> sRings = new ArrayList<Ring>();
+    private static final ThreadLocal<Ring> sRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Thread thread = Thread.currentThread();
+            synchronized (sRings) {
+                for (Ring ring : sRings) {
+                    if (!ring.mThread.isAlive() && ring.mThreadName.equals(thread.getName())) {
+                        ring.mThread = thread;
+                        return ring;
+                    }
+                }
+                Ring ring = new Ring(thread);
+                sRings.add(ring);
+                return ring;
+            }
+        }
+    };
+
+    private static class Ring {
+        final long      mTid;
+        final String    mThreadName;
+        Thread          mThread;    // guarded by sRings
+        final long[]    mTimes = new long[RING_SIZE];
+        final String[]  mNames = new String[RING_SIZE];
+        final byte[]    mPhases = new byte[RING_SIZE];
+        final long[]    mValues = new long[RING_SIZE];
+        int mNext;
+        int mSize;
+
+        Ring(Thread thread) {
+            mTid = thread.getId();
+            mThreadName = thread.getName();
+            mThread = thread;
+        }
+
+        synchronized void add(byte phase, String name, long value) {
+            int i = mNext;
+            mTimes[i] = System.nanoTime();
+            mNames[i] = name;
+            mPhases[i] = phase;
+            mValues[i] = value;
+            mNext = (i + 1) % RING_SIZE;
+            if (mSize < RING_SIZE) {
+                mSize++;
+            }
+        }
+
+        /**
+         * Moves the events into the arrays from the oldest, and empties the ring.
+         * @return the number of the events
+         */
+        synchronized int drainTo(long[] times, String[] names, byte[] phases, long[] values) {
+            int size = mSize;
+            int start = (mNext - size + RING_SIZE) % RING_SIZE;
+            for (int n = 0; n < size; n++) {
+                int i = (start + n) % RING_SIZE;
+                times[n] = mTimes[i];
+                names[n] = mNames[i];
+                phases[n] = mPhases[i];
+                values[n] = mValues[i];
+                mNames[i] = null;
+            }
+            mSize = 0;
+            return size;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private Tracer() {
+        // Do nothing.
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void begin(String name) {
+        if (sEnabled) {
+            sRing.get().add(PHASE_BEGIN, name, 0);
+        }
+    }
+
+    public static void end(String name) {
+        if (sEnabled) {
+            sRing.get().add(PHASE_END, name, 0);
+        }
+    }
+
+    public static void counter(String name, long value) {
+        if (sEnabled) {
+            sRing.get().add(PHASE_COUNTER, name, value);
+        }
+    }
+
+    public static void instant(String name) {
+        if (sEnabled) {
+            sRing.get().add(PHASE_INSTANT, name, 0);
+        }
+    }
+
+    /**
+     * Writes the events in all the rings into the file as a JSON trace, and empties the
+     * rings. The oldest events of a thread are lost when its ring has wrapped around.
+     * Each ring is copied out under its lock and formatted after releasing it, so that
+     * the traced threads aren't held up by the disk.
+     */
+    public static void write(File file) throws IOException {
+        Ring[] rings;
+        synchronized (sRings) {
+            rings = sRings.toArray(new Ring[sRings.size()]);
+            for (int i = sRings.size() - 1; i >= 0; i--) {
+                if (!sRings.get(i).mThread.isAlive()) {
+                    sRings.remove(i);
+                }
+            }
+        }
+        long[] times = new long[RING_SIZE];
+        String[] names = new String[RING_SIZE];
+        byte[] phases = new byte[RING_SIZE];
+        long[] values = new long[RING_SIZE];
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8"));
+        try {
+            out.write("{\"traceEvents\":[\n");
+            boolean first = true;
+            for (Ring ring : rings) {
+                first = writeEvent(out, first, "M", "thread_name", ring.mTid, 0,
+                        ",\"args\":{\"name\":\"" + escape(ring.mThreadName) + "\"}");
+                int size = ring.drainTo(times, names, phases, values);
+                for (int i = 0; i < size; i++) {
+                    String args = "";
+                    if (phases[i] == PHASE_COUNTER) {
+                        args = ",\"args\":{\"value\":" + values[i] + "}";
+                    } else if (phases[i] == PHASE_INSTANT) {
+                        args = ",\"s\":\"t\"";
+                    }
+                    first = writeEvent(out, first, String.valueOf((char) phases[i]),
+                            names[i], ring.mTid, times[i] / 1000, args);
+                    names[i] = null;
+                }
+            }
+            out.write("\n]}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static boolean writeEvent(Writer out, boolean first, String phase, String name,
+            long tid, long time, String args) throws IOException {
+        if (!first) {
+            out.write(",\n");
+        }
+        out.write("{\"name\":\"" + escape(name) + "\",\"ph\":\"" + phase +
+                "\",\"ts\":" + time + ",\"pid\":0,\"tid\":" + tid + args + "}");
+        return false;
+    }
+
+    private static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks the voice stealing of {@link AudioMixer} and its single-producer queue, by
+ * mixing clips of constant samples without a sink.
+ */
+public class AudioMixerTest {
+
+    private static final int VOICE_MAX = 12;
+    private static final int QUEUE_SIZE = 32;
+
+    @Test
+    public void testMixesAtOutputRate() {
+        AudioMixer mixer = new AudioMixer(1);
+        mixer.setClip(0, constantClip(1000, 100));
+        assertTrue(mixer.trigger(0, 1f));
+        short[] out = new short[200];
+        mixer.mix(out, out.length);
+        assertEquals(1000, out[0]);
+        assertEquals(1000, out[98]);
+        assertEquals(0, out[99]);
+        assertEquals(0, mixer.getActiveVoices());
+    }
+
+    @Test
+    public void testClipsOnOverflow() {
+        AudioMixer mixer = new AudioMixer(1);
+        mixer.setClip(0, constantClip(20000, 100));
+        mixer.trigger(0, 1f);
+        mixer.trigger(0, 1f);
+        short[] out = new short[1];
+        mixer.mix(out, 1);
+        assertEquals(Short.MAX_VALUE, out[0]);
+    }
+
+    @Test
+    public void testStealsOldestVoiceInOneCycle() {
+        AudioMixer mixer = new AudioMixer(VOICE_MAX + 1);
+        int sum = 0;
+        for (int id = 0; id <= VOICE_MAX; id++) {
+            mixer.setClip(id, constantClip(id + 1, 1000));
+            mixer.trigger(id, 1f);
+            sum += id + 1;
+        }
+        short[] out = new short[1];
+        mixer.mix(out, 1);
+        assertEquals(VOICE_MAX, mixer.getActiveVoices());
+        assertEquals(1, mixer.getStolenVoices());
+        assertEquals(sum - 1, out[0]);     // the first clip has been stolen
+    }
+
+    @Test
+    public void testStealsOldestVoiceAcrossCycles() {
+        AudioMixer mixer = new AudioMixer(3);
+        mixer.setClip(0, constantClip(1, 1000));
+        mixer.setClip(1, constantClip(100, 1000));
+        mixer.setClip(2, constantClip(10000, 1000));
+        short[] out = new short[1];
+        mixer.trigger(0, 1f);
+        mixer.mix(out, 1);
+        for (int i = 1; i < VOICE_MAX; i++) {
+            mixer.trigger(1, 1f);
+        }
+        mixer.mix(out, 1);
+        assertEquals(1 + 100 * (VOICE_MAX - 1), out[0]);
+
+        mixer.trigger(2, 1f);
+        mixer.mix(out, 1);
+        assertEquals(1, mixer.getStolenVoices());
+        assertEquals(100 * (VOICE_MAX - 1) + 10000, out[0]);
+    }
+
+    @Test
+    public void testFullQueueDropsTriggers() {
+        AudioMixer mixer = new AudioMixer(1);
+        mixer.setClip(0, constantClip(1, 2));
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            assertTrue(mixer.trigger(0, 1f));
+        }
+        assertFalse(mixer.trigger(0, 1f));
+        assertEquals(1, mixer.getDroppedTriggers());
+
+        short[] out = new short[2];
+        mixer.mix(out, 2);
+        assertTrue(mixer.trigger(0, 1f));
+    }
+
+    @Test
+    public void testIgnoresUnknownClips() {
+        AudioMixer mixer = new AudioMixer(2);
+        mixer.setClip(0, constantClip(1, 100));
+        mixer.trigger(1, 1f);
+        mixer.trigger(5, 1f);
+        mixer.trigger(-1, 1f);
+        short[] out = new short[1];
+        mixer.mix(out, 1);
+        assertEquals(0, mixer.getActiveVoices());
+        assertEquals(0, out[0]);
+    }
+
+    /**
+     * Triggers from another thread while mixing, and counts the started voices. Each clip
+     * is two samples long and each cycle mixes two frames, so every voice starts and ends
+     * in the same cycle, and adds 1 to the first frame unless it's stolen.
+     */
+    @Test(timeout = 60000)
+    public void testQueueDeliversEveryTriggerAcrossThreads() throws InterruptedException {
+        final int triggers = 200000;
+        final AudioMixer mixer = new AudioMixer(1);
+        mixer.setClip(0, constantClip(1, 2));
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < triggers; i++) {
+                    while (!mixer.trigger(0, 1f)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        short[] out = new short[2];
+        long started = 0;
+        while (started + mixer.getStolenVoices() < triggers) {
+            mixer.mix(out, 2);
+            started += out[0];
+            assertEquals(0, mixer.getActiveVoices());
+        }
+        producer.join();
+        mixer.mix(out, 2);
+        assertEquals(0, out[0]);
+        assertEquals(triggers, started + mixer.getStolenVoices());
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static AudioMixer.Clip constantClip(int value, int length) {
+        short[] samples = new short[length];
+        Arrays.fill(samples, (short) value);
+        return new AudioMixer.Clip(samples, AudioMixer.OUTPUT_RATE);
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives {@link RenderScheduler} with a fake clock and checks the transitions between
+ * continuous and on-demand rendering through a target which records its calls.
+ */
+public class RenderSchedulerTest {
+
+    private static class FakeClock implements RenderScheduler.Clock {
+        long    mNow = 100000L;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+    }
+
+    private static class RecordingTarget implements RenderScheduler.Target {
+        boolean mContinuous;
+        long    mWakeDelay = -1;    // -1 while no wake is scheduled
+        int     mScheduled;
+        int     mCanceled;
+
+        @Override
+        public void setContinuous(boolean continuous) {
+            mContinuous = continuous;
+        }
+
+        @Override
+        public void scheduleWake(long delay) {
+            mWakeDelay = delay;
+            mScheduled++;
+        }
+
+        @Override
+        public void cancelWake() {
+            mWakeDelay = -1;
+            mCanceled++;
+        }
+    }
+
+    private FakeClock       mClock;
+    private RecordingTarget mTarget;
+    private RenderScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mTarget = new RecordingTarget();
+        mScheduler = new RenderScheduler(mTarget, mClock);
+        mScheduler.reset();
+    }
+
+    @Test
+    public void testResetRendersContinuously() {
+        assertTrue(mTarget.mContinuous);
+        assertFalse(mScheduler.isIdle());
+        assertEquals(-1, mTarget.mWakeDelay);
+    }
+
+    @Test
+    public void testAnimatingFramesStayContinuous() {
+        for (int i = 0; i < 100; i++) {
+            mScheduler.onFrameRendered(true, 30);
+        }
+        assertTrue(mTarget.mContinuous);
+        assertFalse(mScheduler.isIdle());
+        assertEquals(0, mTarget.mScheduled);
+    }
+
+    @Test
+    public void testStillFrameGoesIdleUntilNextSpawn() {
+        mScheduler.onFrameRendered(false, 61);
+        assertTrue(mScheduler.isIdle());
+        assertFalse(mTarget.mContinuous);
+        assertEquals(1000, mTarget.mWakeDelay);
+
+        mScheduler.onFrameRendered(false, 60);
+        assertEquals(1, mTarget.mScheduled);
+    }
+
+    @Test
+    public void testOverdueSpawnWakesAtOnce() {
+        mScheduler.onFrameRendered(false, -5);
+        assertEquals(0, mTarget.mWakeDelay);
+    }
+
+    @Test
+    public void testWakeCountsIdleFrames() {
+        mScheduler.onFrameRendered(false, 600);
+        mClock.mNow += 500;
+        mScheduler.wake();
+        assertFalse(mScheduler.isIdle());
+        assertTrue(mTarget.mContinuous);
+        assertEquals(-1, mTarget.mWakeDelay);
+        assertEquals(30, mScheduler.consumeIdleFrames());
+        assertEquals(0, mScheduler.consumeIdleFrames());
+    }
+
+    @Test
+    public void testIdleFramesAddUp() {
+        for (int i = 0; i < 3; i++) {
+            mScheduler.onFrameRendered(false, 600);
+            mClock.mNow += 1000;
+            mScheduler.wake();
+            mScheduler.onFrameRendered(true, 600);
+        }
+        assertEquals(180, mScheduler.consumeIdleFrames());
+    }
+
+    @Test
+    public void testWakeWhileRenderingKeepsNextFrame() {
+        mScheduler.wake();
+        mScheduler.onFrameRendered(false, 60);
+        assertFalse(mScheduler.isIdle());
+        assertTrue(mTarget.mContinuous);
+
+        mScheduler.onFrameRendered(false, 60);
+        assertTrue(mScheduler.isIdle());
+    }
+
+    @Test
+    public void testStopIgnoresFramesAndWakes() {
+        mScheduler.stop();
+        assertFalse(mTarget.mContinuous);
+        mScheduler.onFrameRendered(false, 60);
+        mScheduler.wake();
+        assertFalse(mTarget.mContinuous);
+        assertFalse(mScheduler.isIdle());
+        assertEquals(0, mTarget.mScheduled);
+
+        mScheduler.reset();
+        assertTrue(mTarget.mContinuous);
+        mScheduler.onFrameRendered(false, 60);
+        assertTrue(mScheduler.isIdle());
+    }
+
+    @Test
+    public void testStopCancelsScheduledWake() {
+        mScheduler.onFrameRendered(false, 600);
+        mScheduler.stop();
+        assertEquals(-1, mTarget.mWakeDelay);
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Feeds accelerometer traces in tests/res/traces to {@link ShakeDetector} and checks
+ * when shakes are reported. Each line of a trace is the timestamp in nanoseconds and
+ * the three axes in m/s^2, as {@link android.hardware.SensorEvent} gives them.
+ */
+public class ShakeDetectorTest {
+
+    private static final long REFRACTORY_PERIOD = 250000000L;
+
+    @Test
+    public void testRestIsQuiet() throws IOException {
+        assertEquals(0, detect("rest.txt").size());
+    }
+
+    @Test
+    public void testWalkingIsQuiet() throws IOException {
+        assertEquals(0, detect("walking.txt").size());
+    }
+
+    @Test
+    public void testPickupIsQuiet() throws IOException {
+        assertEquals(0, detect("pickup.txt").size());
+    }
+
+    @Test
+    public void testFlickIsOneShake() throws IOException {
+        List<Long> shakes = detect("flick.txt");
+        assertEquals(1, shakes.size());
+        assertEquals(1000, toMillis(shakes.get(0), "flick.txt"), 60);
+    }
+
+    @Test
+    public void testShakesAreSpacedByRefractoryPeriod() throws IOException {
+        List<Long> shakes = detect("shake.txt");
+        long duration = 2000000000L;
+        assertTrue(shakes.size() >= 4);
+        assertTrue(shakes.size() <= duration / REFRACTORY_PERIOD + 1);
+        assertEquals(500, toMillis(shakes.get(0), "shake.txt"), 60);
+        for (int i = 1; i < shakes.size(); i++) {
+            assertTrue(shakes.get(i) - shakes.get(i - 1) >= REFRACTORY_PERIOD);
+        }
+    }
+
+    @Test
+    public void testFirstSampleIsTakenAsGravity() {
+        ShakeDetector detector = new ShakeDetector();
+        long time = 0;
+        for (int i = 0; i < 50; i++) {
+            assertFalse(detector.onSample(9.81f, 0f, 0f, time += 20000000L));
+        }
+    }
+
+    @Test
+    public void testResetForgetsRefractoryPeriod() throws IOException {
+        ShakeDetector detector = new ShakeDetector();
+        assertEquals(1, detect(detector, readTrace("flick.txt")).size());
+        detector.reset();
+        assertEquals(1, detect(detector, readTrace("flick.txt")).size());
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static class Sample {
+        long    mTime;
+        float   mX, mY, mZ;
+    }
+
+    private static List<Long> detect(String name) throws IOException {
+        return detect(new ShakeDetector(), readTrace(name));
+    }
+
+    private static List<Long> detect(ShakeDetector detector, List<Sample> trace) {
+        List<Long> shakes = new ArrayList<Long>();
+        for (Sample sample : trace) {
+            if (detector.onSample(sample.mX, sample.mY, sample.mZ, sample.mTime)) {
+                shakes.add(sample.mTime);
+            }
+        }
+        return shakes;
+    }
+
+    private static long toMillis(long timestamp, String name) throws IOException {
+        return (timestamp - readTrace(name).get(0).mTime) / 1000000L;
+    }
+
+    private static List<Sample> readTrace(String name) throws IOException {
+        InputStream in = ShakeDetectorTest.class.getResourceAsStream("/traces/" + name);
+        assertNotNull(name, in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<Sample> trace = new ArrayList<Sample>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                Sample sample = new Sample();
+                sample.mTime = Long.parseLong(fields[0]);
+                sample.mX = Float.parseFloat(fields[1]);
+                sample.mY = Float.parseFloat(fields[2]);
+                sample.mZ = Float.parseFloat(fields[3]);
+                trace.add(sample);
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+}
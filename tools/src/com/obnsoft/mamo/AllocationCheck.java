@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.lang.reflect.Method;
+
+/**
+ * Checks that the per-frame paths of {@link ElementsManager} don't allocate once the
+ * arrays have grown to the working size. Each path is run for thousands of steps in
+ * several rounds, and the bytes allocated by this thread are measured in the last rounds.
+ * The collisions and the large world are checked with their own managers, which hold a
+ * fixed number of targets so that their arrays stop growing during the warm-up.
+ * <p>
+ * This runs on a desktop JVM with the app classes on the class path. Running it with
+ * -Xint keeps the JIT from hiding allocations by escape analysis:
+ * <pre>java -Xint com.obnsoft.mamo.AllocationCheck</pre>
+ * The exit status is 1 if any path allocates more than the budget, which is 0 bytes by
+ * default and can be given as the first argument. The management beans are looked up by
+ * reflection because Android doesn't have them. The Ant target "allocation-check" runs
+ * this on request and fails on a non-zero status:
+ * <pre>ant allocation-check</pre>
+ */
+public class AllocationCheck {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 3;
+    private static final int FRAMES = 3000;     // steps of forwardElements and judgeTargets
+    private static final int SPAWNS = 500;      // steps of newTarget and throwBomb
+    private static final int TOUCH_POINTS = 16;
+    private static final int FIXED_TARGETS = 48;    // for the collisions and the large world
+
+    private static final int PATH_FORWARD = 0;
+    private static final int PATH_JUDGE = 1;
+    private static final int PATH_NEW_TARGET = 2;
+    private static final int PATH_BOMB = 3;
+    private static final int PATH_COLLISIONS = 4;
+    private static final int PATH_WORLD = 5;
+    private static final String[] PATH_NAMES = {
+        "forwardElements", "judgeTargets", "newTarget", "throwBomb", "collisions", "largeWorld",
+    };
+
+    private final ElementsManager mManager = new ElementsManager();
+    private final ElementsManager mCollisionsManager = new ElementsManager();
+    private final ElementsManager mWorldManager = new ElementsManager();
+    private final float[]   mTouchX = new float[TOUCH_POINTS];
+    private final float[]   mTouchY = new float[TOUCH_POINTS];
+    private final long[]    mTouchTime = new long[TOUCH_POINTS];
+    private final long[]    mBytes = new long[PATH_NAMES.length];
+    private final int[]     mSteps = new int[PATH_NAMES.length];
+    private long    mFrameTime;
+    private Object  mThreadBean;
+    private Method  mGetAllocatedBytes;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) throws Exception {
+        long budget = (args.length > 0) ? Long.parseLong(args[0]) : 0;
+        AllocationCheck check = new AllocationCheck();
+        check.run();
+        boolean failed = false;
+        for (int path = 0; path < PATH_NAMES.length; path++) {
+            long bytes = check.mBytes[path];
+            boolean over = bytes > budget;
+            System.out.println(String.format("%-16s %10d bytes in %d steps%s", PATH_NAMES[path],
+                    bytes, check.mSteps[path], over ? "  FAILED" : ""));
+            failed |= over;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    public AllocationCheck() throws Exception {
+        mThreadBean = Class.forName("java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean").invoke(null);
+        mGetAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+        mManager.setInterval(30);
+        mManager.setFieldRange(0.5f, 0.8f);
+        mCollisionsManager.setCollisions(true);
+        mWorldManager.setWorldScreens(ElementsManager.WORLD_SCREENS);
+        for (ElementsManager manager : new ElementsManager[] {
+                mCollisionsManager, mWorldManager }) {
+            manager.setInterval(Integer.MAX_VALUE);
+            manager.setFieldRange(0.5f, 0.8f);
+            for (int i = 0; i < FIXED_TARGETS; i++) {
+                manager.newTarget();
+            }
+        }
+        for (int i = 0; i < TOUCH_POINTS; i++) {
+            mTouchX[i] = (i % 4) / 4f - 0.375f;
+            mTouchY[i] = (i / 4) / 2.5f - 0.6f;
+        }
+    }
+
+    /**
+     * Runs all the paths in rounds, adding up the bytes of the measured rounds.
+     */
+    public void run() throws Exception {
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            boolean measured = round >= WARMUP_ROUNDS;
+            for (int path = 0; path < PATH_NAMES.length; path++) {
+                long overhead = measure(-1);
+                long bytes = measure(path) - overhead;
+                if (measured) {
+                    mBytes[path] += Math.max(bytes, 0);
+                    boolean spawns = (path == PATH_NEW_TARGET || path == PATH_BOMB);
+                    mSteps[path] += spawns ? SPAWNS : FRAMES;
+                }
+            }
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the bytes allocated while running the path. A negative path runs nothing,
+     * which measures the cost of the measurement itself.
+     */
+    private long measure(int path) throws Exception {
+        long tid = Thread.currentThread().getId();
+        long before = (Long) mGetAllocatedBytes.invoke(mThreadBean, tid);
+        switch (path) {
+        case PATH_FORWARD:
+            for (int i = 0; i < FRAMES; i++) {
+                mFrameTime += ElementsManager.DISPLAY_LATENCY;
+                mManager.forwardElements(mFrameTime);
+            }
+            break;
+        case PATH_JUDGE:
+            for (int i = 0; i < TOUCH_POINTS; i++) {
+                mTouchTime[i] = mFrameTime;
+            }
+            for (int i = 0; i < FRAMES; i++) {
+                mManager.judgeTargets(mTouchX, mTouchY, mTouchTime, TOUCH_POINTS);
+            }
+            break;
+        case PATH_NEW_TARGET:
+            for (int i = 0; i < SPAWNS; i++) {
+                mManager.newTarget();
+            }
+            break;
+        case PATH_BOMB:
+            for (int i = 0; i < SPAWNS; i++) {
+                mManager.newTarget();
+                mManager.throwBomb();
+            }
+            break;
+        case PATH_COLLISIONS:
+            for (int i = 0; i < FRAMES; i++) {
+                mFrameTime += ElementsManager.DISPLAY_LATENCY;
+                mCollisionsManager.forwardElements(mFrameTime);
+            }
+            break;
+        case PATH_WORLD:
+            // sweep the camera from one end of the world to the other and back
+            float limit = 0.5f * (ElementsManager.WORLD_SCREENS - 1);
+            for (int i = 0; i < FRAMES; i++) {
+                float phase = Math.abs((float) i / FRAMES * 2f - 1f);
+                mWorldManager.setCameraX(limit * (phase * 2f - 1f));
+                mFrameTime += ElementsManager.DISPLAY_LATENCY;
+                mWorldManager.forwardElements(mFrameTime);
+            }
+            break;
+        }
+        long after = (Long) mGetAllocatedBytes.invoke(mThreadBean, tid);
+        return after - before;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+/**
+ * Measures {@link AreaScaler} on a photo sized source, for the whole output at once and
+ * for bands of 64 output rows as the gallery capture scales it, with increasing numbers
+ * of threads. The banded time should stay close to the whole one, as the threads are
+ * reused from band to band.
+ * <p>
+ * The former path of the gallery capture is measured first as the baseline. It drew the
+ * whole source bitmap into the output through Canvas with no filtering, which samples
+ * the nearest source pixel of each output pixel.
+ * <p>
+ * This runs on a desktop JVM with the app classes on the class path:
+ * <pre>java com.obnsoft.mamo.AreaScalerBenchmark</pre>
+ */
+public class AreaScalerBenchmark {
+
+    private static final int SRC_SIZE = 2048;
+    private static final int DST_SIZE = 256;
+    private static final int BAND_ROWS = 64;
+    private static final int MAX_THREADS = 8;
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 20;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        int[] src = new int[SRC_SIZE * SRC_SIZE];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xFF000000 | (i * 0x9E3779B1) >>> 8;
+        }
+        int[] dst = new int[DST_SIZE * DST_SIZE];   // one band is rewritten when banded
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            scaleNearest(src, dst);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            scaleNearest(src, dst);
+        }
+        double nearest = (double) (System.nanoTime() - start) / RUNS;
+        System.out.println(String.format("nearest (former path): %.2f ms", nearest / 1000000.0));
+        System.out.println(String.format("%8s %12s %12s", "threads", "whole(ms)", "bands(ms)"));
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            AreaScaler scaler = new AreaScaler(threads);
+            double whole = measure(scaler, src, dst, DST_SIZE);
+            double bands = measure(scaler, src, dst, BAND_ROWS);
+            System.out.println(String.format("%8d %12.2f %12.2f", threads, whole / 1000000.0,
+                    bands / 1000000.0));
+        }
+    }
+
+    /**
+     * Returns the average nanoseconds to scale the whole source, in bands of the rows.
+     */
+    private static double measure(AreaScaler scaler, int[] src, int[] dst, int bandRows) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            scaleInBands(scaler, src, dst, bandRows);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            scaleInBands(scaler, src, dst, bandRows);
+        }
+        return (double) (System.nanoTime() - start) / RUNS;
+    }
+
+    /**
+     * Samples the nearest source pixel of each output pixel over the whole source.
+     */
+    private static void scaleNearest(int[] src, int[] dst) {
+        for (int y = 0; y < DST_SIZE; y++) {
+            int row = (int) ((y + 0.5f) * SRC_SIZE / DST_SIZE) * SRC_SIZE;
+            for (int x = 0; x < DST_SIZE; x++) {
+                dst[y * DST_SIZE + x] = src[row + (int) ((x + 0.5f) * SRC_SIZE / DST_SIZE)];
+            }
+        }
+    }
+
+    private static void scaleInBands(AreaScaler scaler, int[] src, int[] dst, int bandRows) {
+        float step = (float) SRC_SIZE / DST_SIZE;
+        for (int row = 0; row < DST_SIZE; row += bandRows) {
+            int rows = Math.min(bandRows, DST_SIZE - row);
+            scaler.scale(src, SRC_SIZE, SRC_SIZE, 0f, step * row, SRC_SIZE, step * (row + rows),
+                    dst, DST_SIZE, rows);
+        }
+    }
+
+}
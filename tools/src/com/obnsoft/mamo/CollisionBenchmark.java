@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+/**
+ * Measures the cost of the collisions between targets for doubling numbers of targets.
+ * The field grows with the number so that the density stays the same, as the number of
+ * contacts per target would grow without bound otherwise. The cost per target should stay
+ * nearly flat if the collisions scale linearly.
+ * <p>
+ * This runs on a desktop JVM with the app classes on the class path:
+ * <pre>java com.obnsoft.mamo.CollisionBenchmark</pre>
+ */
+public class CollisionBenchmark {
+
+    private static final int MIN_TARGETS = 100;
+    private static final int MAX_TARGETS = 12800;
+    private static final int WARMUP_FRAMES = 300;
+    private static final int FRAMES = 1000;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        System.out.println(String.format("%8s %12s %12s %14s", "targets", "off(us)", "on(us)",
+                "collide(ns)/t"));
+        for (int n = MIN_TARGETS; n <= MAX_TARGETS; n *= 2) {
+            double off = measure(n, false);
+            double on = measure(n, true);
+            System.out.println(String.format("%8d %12.1f %12.1f %14.1f", n, off / 1000.0,
+                    on / 1000.0, (on - off) / n));
+        }
+    }
+
+    /**
+     * Returns the average nanoseconds per frame with the targets of the number.
+     */
+    private static double measure(int targets, boolean collisions) {
+        ElementsManager manager = new ElementsManager();
+        float range = 0.5f * (float) Math.sqrt((double) targets / MIN_TARGETS);
+        manager.setFieldRange(range, range);
+        manager.setInterval(Integer.MAX_VALUE);
+        manager.setCollisions(collisions);
+        for (int i = 0; i < targets; i++) {
+            manager.newTarget();
+        }
+        long frameTime = 0;
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            manager.forwardElements(frameTime += ElementsManager.DISPLAY_LATENCY);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            manager.forwardElements(frameTime += ElementsManager.DISPLAY_LATENCY);
+        }
+        return (double) (System.nanoTime() - start) / FRAMES;
+    }
+
+}
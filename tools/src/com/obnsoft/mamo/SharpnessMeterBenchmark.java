@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures {@link SharpnessMeter} on a 720p NV21 preview frame with increasing numbers
+ * of threads, in the time and the bytes allocated by the calling thread per score.
+ * <p>
+ * This runs on a desktop JVM with the app classes on the class path:
+ * <pre>java com.obnsoft.mamo.SharpnessMeterBenchmark</pre>
+ */
+public class SharpnessMeterBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int SIZE = 640;
+    private static final int MAX_THREADS = 8;
+    private static final int WARMUP_SCORES = 200;
+    private static final int SCORES = 1000;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) throws Exception {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) ((i * 0x9E3779B1) >>> 24);
+        }
+        Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean").invoke(null);
+        Method getAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+        long tid = Thread.currentThread().getId();
+
+        System.out.println(String.format("%8s %12s %12s", "threads", "score(us)", "bytes/score"));
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            SharpnessMeter meter = new SharpnessMeter(threads);
+            int left = (WIDTH - SIZE) / 2, top = (HEIGHT - SIZE) / 2;
+            for (int i = 0; i < WARMUP_SCORES; i++) {
+                meter.score(frame, WIDTH, left, top, SIZE);
+            }
+            long bytes = (Long) getAllocatedBytes.invoke(threadBean, tid);
+            long start = System.nanoTime();
+            for (int i = 0; i < SCORES; i++) {
+                meter.score(frame, WIDTH, left, top, SIZE);
+            }
+            long time = System.nanoTime() - start;
+            bytes = (Long) getAllocatedBytes.invoke(threadBean, tid) - bytes;
+            meter.release();
+            System.out.println(String.format("%8d %12.1f %12d", threads,
+                    time / 1000.0 / SCORES, bytes / SCORES));
+        }
+    }
+
+}
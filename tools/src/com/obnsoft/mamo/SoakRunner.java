@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013, 2014 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.mamo;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives an {@link ElementsManager} headlessly for hours of simulated time, with taps,
+ * shake bursts and bombs at configurable rates, and reports how the element count, the
+ * heap, the GC and the latency of each step change over time.
+ * <p>
+ * This runs on a desktop JVM with the app classes on the class path:
+ * <pre>java com.obnsoft.mamo.SoakRunner hours=4 bomb=3600</pre>
+ * The exit status is 1 if a leak or a latency regression is suspected.
+ */
+public class SoakRunner {
+
+    private static final long FRAME_MSEC = 1000 / RenderScheduler.FRAMES_PER_SECOND;
+    private static final double HEAP_GROWTH_LIMIT = 1.2;
+    private static final long HEAP_GROWTH_MIN_BYTES = 1024 * 1024;
+    private static final double COUNT_GROWTH_LIMIT = 2.0;
+    private static final int COUNT_GROWTH_MIN = 64;
+    private static final double LATENCY_GROWTH_LIMIT = 1.5;
+
+    /* Settings given as key=value arguments */
+    private double  mHours = 1.0;
+    private int     mInterval = 55;         // frames between scheduled spawns
+    private double  mTapRate = 0.2;         // taps per frame
+    private int     mShakeFrames = 600;     // frames between shake bursts, 0 for none
+    private int     mShakeBurst = 8;        // targets per shake burst
+    private int     mBombFrames = 3600;     // frames between bombs, 0 for none
+    private int     mSampleFrames = 3600;   // frames between samples
+    private long    mSeed = 1;
+
+    private static class Sample {
+        long    mFrame;
+        int     mCount;
+        int     mCapacity;
+        long    mHeap;
+        long    mGcCount;
+        long    mGcMillis;
+        long    mP50;
+        long    mP99;
+        long    mMax;
+    }
+
+    private final List<Sample> mSamples = new ArrayList<Sample>();
+    private final List<String> mFlags = new ArrayList<String>();
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        SoakRunner runner = new SoakRunner();
+        for (String arg : args) {
+            if (!runner.setArgument(arg)) {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(2);
+            }
+        }
+        runner.run();
+        runner.report(System.out);
+        System.exit(runner.mFlags.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Applies one key=value argument.
+     * @return false if the key is unknown
+     */
+    public boolean setArgument(String arg) {
+        int pos = arg.indexOf('=');
+        if (pos < 0) {
+            return false;
+        }
+        String key = arg.substring(0, pos);
+        String value = arg.substring(pos + 1);
+        if (key.equals("hours")) {
+            mHours = Double.parseDouble(value);
+        } else if (key.equals("interval")) {
+            mInterval = Integer.parseInt(value);
+        } else if (key.equals("taps")) {
+            mTapRate = Double.parseDouble(value);
+        } else if (key.equals("shake")) {
+            mShakeFrames = Integer.parseInt(value);
+        } else if (key.equals("burst")) {
+            mShakeBurst = Integer.parseInt(value);
+        } else if (key.equals("bomb")) {
+            mBombFrames = Integer.parseInt(value);
+        } else if (key.equals("sample")) {
+            mSampleFrames = Integer.parseInt(value);
+        } else if (key.equals("seed")) {
+            mSeed = Long.parseLong(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the whole session, sampling every {@code sample} frames.
+     */
+    public void run() {
+        ElementsManager manager = new ElementsManager();
+        manager.setInterval(mInterval);
+        manager.setFieldRange(0.5f, 0.8f);
+        Random random = new Random(mSeed);
+        float[] xs = new float[1];
+        float[] ys = new float[1];
+        long[] times = new long[1];
+        long[] latencies = new long[mSampleFrames];
+        long frames = (long) (mHours * 3600 * RenderScheduler.FRAMES_PER_SECOND);
+        long frameTime = 0;
+        for (long frame = 1; frame <= frames; frame++) {
+            frameTime += FRAME_MSEC;
+            long start = System.nanoTime();
+            if (mShakeFrames > 0 && frame % mShakeFrames == 0) {
+                for (int i = 0; i < mShakeBurst; i++) {
+                    manager.requestTarget();
+                }
+            }
+            if (mBombFrames > 0 && frame % mBombFrames == 0) {
+                manager.throwBomb();
+            }
+            manager.forwardElements(frameTime);
+            if (random.nextDouble() < mTapRate) {
+                xs[0] = random.nextFloat() - 0.5f;
+                ys[0] = (random.nextFloat() - 0.5f) * 1.6f;
+                times[0] = frameTime;
+                manager.judgeTargets(xs, ys, times, 1);
+            }
+            latencies[(int) ((frame - 1) % mSampleFrames)] = System.nanoTime() - start;
+            if (frame % mSampleFrames == 0) {
+                mSamples.add(takeSample(manager, frame, latencies));
+            }
+        }
+        analyze();
+    }
+
+    public void report(PrintStream out) {
+        out.println(String.format("%8s %8s %8s %9s %6s %8s %8s %8s %8s",
+                "minute", "count", "capacity", "heap(KB)", "gc", "gc(ms)",
+                "p50(us)", "p99(us)", "max(us)"));
+        for (Sample s : mSamples) {
+            out.println(String.format("%8.1f %8d %8d %9d %6s %8s %8.1f %8.1f %8.1f",
+                    s.mFrame / (60.0 * RenderScheduler.FRAMES_PER_SECOND), s.mCount,
+                    s.mCapacity, s.mHeap / 1024, formatGc(s.mGcCount), formatGc(s.mGcMillis),
+                    s.mP50 / 1000.0, s.mP99 / 1000.0, s.mMax / 1000.0));
+        }
+        if (mFlags.isEmpty()) {
+            out.println("No leak or latency regression suspected.");
+        }
+        for (String flag : mFlags) {
+            out.println("SUSPECT: " + flag);
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private Sample takeSample(ElementsManager manager, long frame, long[] latencies) {
+        Sample s = new Sample();
+        s.mFrame = frame;
+        s.mCount = manager.getCount();
+        s.mCapacity = manager.getCapacity();
+        Runtime runtime = Runtime.getRuntime();
+        s.mHeap = runtime.totalMemory() - runtime.freeMemory();
+        long[] gc = readGcStats();
+        s.mGcCount = (gc != null) ? gc[0] : -1;
+        s.mGcMillis = (gc != null) ? gc[1] : -1;
+        Arrays.sort(latencies);
+        s.mP50 = latencies[latencies.length / 2];
+        s.mP99 = latencies[latencies.length * 99 / 100];
+        s.mMax = latencies[latencies.length - 1];
+        return s;
+    }
+
+    /**
+     * Compares the second quarter of the session with the last one. The first quarter is
+     * skipped as warm-up. The heap is compared by its minimum, which is what remains
+     * after collections, and the element count by its mean.
+     */
+    private void analyze() {
+        int n = mSamples.size();
+        if (n < 4) {
+            mFlags.add("Too few samples to analyze; run longer or sample more often.");
+            return;
+        }
+        List<Sample> early = mSamples.subList(n / 4, n / 2);
+        List<Sample> late = mSamples.subList(n * 3 / 4, n);
+        long earlyHeap = Long.MAX_VALUE, lateHeap = Long.MAX_VALUE;
+        long earlyCount = 0, lateCount = 0;
+        long earlyP99 = 0, lateP99 = 0;
+        for (Sample s : early) {
+            earlyHeap = Math.min(earlyHeap, s.mHeap);
+            earlyCount += s.mCount;
+            earlyP99 += s.mP99;
+        }
+        for (Sample s : late) {
+            lateHeap = Math.min(lateHeap, s.mHeap);
+            lateCount += s.mCount;
+            lateP99 += s.mP99;
+        }
+        earlyCount /= early.size();
+        lateCount /= late.size();
+        earlyP99 /= early.size();
+        lateP99 /= late.size();
+        if (lateHeap > earlyHeap * HEAP_GROWTH_LIMIT &&
+                lateHeap - earlyHeap > HEAP_GROWTH_MIN_BYTES) {
+            mFlags.add(String.format("Heap floor grew from %d KB to %d KB.",
+                    earlyHeap / 1024, lateHeap / 1024));
+        }
+        if (lateCount > earlyCount * COUNT_GROWTH_LIMIT &&
+                lateCount - earlyCount > COUNT_GROWTH_MIN) {
+            mFlags.add(String.format("Mean element count grew from %d to %d.",
+                    earlyCount, lateCount));
+        }
+        int earlyCapacity = mSamples.get(n / 2 - 1).mCapacity;
+        int lateCapacity = mSamples.get(n - 1).mCapacity;
+        if (lateCapacity > earlyCapacity) {
+            mFlags.add(String.format("Element arrays kept growing from %d to %d.",
+                    earlyCapacity, lateCapacity));
+        }
+        if (lateP99 > earlyP99 * LATENCY_GROWTH_LIMIT) {
+            mFlags.add(String.format("p99 step latency grew from %.1f us to %.1f us.",
+                    earlyP99 / 1000.0, lateP99 / 1000.0));
+        }
+    }
+
+    /**
+     * Returns the total count and time in msec of the collections, or null if the
+     * management beans aren't available. They are looked up by reflection because
+     * Android doesn't have them.
+     */
+    private static long[] readGcStats() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Class<?> beanClass = Class.forName("java.lang.management.GarbageCollectorMXBean");
+            Method getCount = beanClass.getMethod("getCollectionCount");
+            Method getTime = beanClass.getMethod("getCollectionTime");
+            long[] ret = new long[2];
+            for (Object bean : (List<?>) factory.getMethod("getGarbageCollectorMXBeans")
+                    .invoke(null)) {
+                ret[0] += Math.max((Long) getCount.invoke(bean), 0L);
+                ret[1] += Math.max((Long) getTime.invoke(bean), 0L);
+            }
+            return ret;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String formatGc(long value) {
+        return (value >= 0) ? String.valueOf(value) : "-";
+    }
+
+}